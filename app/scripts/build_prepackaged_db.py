@@ -0,0 +1,122 @@
+#!/usr/bin/env python3
+"""
+生成打包进 APK 的预填充数据库 app/src/main/assets/databases/basic-sample-db.db
+
+1）表结构、索引、identity hash 全部来自 app/schemas 下 Room 导出的最新版本，文件的 user_version 就是这个版本，
+Room 用 createFromAsset 复制之后直接打开，不会走迁移，也不会因为 identity hash 不一致而失败
+2）数据和 DataGenerator.generateProducts / generateCommentsForProducts 一样：词表、发表时间的基准直接从
+DataGenerator.java 里读取；价格、每个商品的评论数用固定的 seed，同一份代码每次生成的文件完全一样
+3）只写入表和数据：触发器、全文索引、评论统计由 AppDatabase 的 onOpen 在第一次打开时补齐
+（ensureFtsSyncTriggers、ensureCommentStatsTriggers、createChangeLogTriggers），不在这里重复一份 SQL
+4）数据库版本或 DataGenerator 的词表变化之后需要重新运行：./gradlew :app:buildPrepackagedDatabase
+"""
+
+import glob
+import json
+import os
+import random
+import re
+import sqlite3
+import sys
+
+APP_DIR = os.path.dirname(os.path.dirname(os.path.abspath(__file__)))
+SCHEMA_DIR = os.path.join(APP_DIR, "schemas", "com.davi.architectureguide.db.AppDatabase")
+DATA_GENERATOR = os.path.join(APP_DIR, "src", "main", "java", "com", "davi", "architectureguide",
+                              "DataGenerator.java")
+OUTPUT = os.path.join(APP_DIR, "src", "main", "assets", "databases", "basic-sample-db.db")
+
+SEED = 42
+
+DAY_MILLIS = 24 * 60 * 60 * 1000
+HOUR_MILLIS = 60 * 60 * 1000
+
+
+def latest_schema():
+    versions = [int(os.path.splitext(os.path.basename(path))[0])
+                for path in glob.glob(os.path.join(SCHEMA_DIR, "*.json"))]
+    if not versions:
+        sys.exit("no exported schema in " + SCHEMA_DIR)
+    with open(os.path.join(SCHEMA_DIR, "%d.json" % max(versions)), encoding="utf-8") as f:
+        return json.load(f)["database"]
+
+
+def java_string(literal):
+    # 连续的 \\uXXXX 按 UTF-16 解码，代理对（emoji）才能还原
+    def decode(match):
+        units = re.findall(r"\\u([0-9a-fA-F]{4})", match.group(0))
+        return b"".join(bytes.fromhex(unit) for unit in units).decode("utf-16-be")
+
+    literal = re.sub(r"(?:\\u[0-9a-fA-F]{4})+", decode, literal)
+    return literal.replace('\\"', '"').replace("\\\\", "\\")
+
+
+def read_generator():
+    with open(DATA_GENERATOR, encoding="utf-8") as f:
+        source = f.read()
+
+    def array(name):
+        match = re.search(r"String\[\]\s+%s\s*=\s*new String\[\]\s*\{(.*?)\};" % name, source, re.S)
+        if match is None:
+            sys.exit("%s not found in %s" % (name, DATA_GENERATOR))
+        return [java_string(s) for s in re.findall(r'"((?:[^"\\]|\\.)*)"', match.group(1))]
+
+    epoch = re.search(r"DEFAULT_EPOCH_MILLIS\s*=\s*(\d+)L", source)
+    if epoch is None:
+        sys.exit("DEFAULT_EPOCH_MILLIS not found in " + DATA_GENERATOR)
+    return array("FIRST"), array("SECOND"), array("DESCRIPTION"), array("COMMENTS"), int(epoch.group(1))
+
+
+def create_schema(db, schema):
+    for entity in schema["entities"]:
+        table = entity["tableName"]
+        db.execute(entity["createSql"].replace("${TABLE_NAME}", table))
+        for index in entity.get("indices", []):
+            db.execute(index["createSql"].replace("${TABLE_NAME}", table))
+    for view in schema.get("views", []):
+        db.execute(view["createSql"].replace("${VIEW_NAME}", view["viewName"]))
+    for query in schema["setupQueries"]:
+        db.execute(query)
+    db.execute("PRAGMA user_version = %d" % schema["version"])
+
+
+def insert_data(db, first, second, description, comments, epoch_millis):
+    rnd = random.Random(SEED)
+    for i, first_word in enumerate(first):
+        for j, second_word in enumerate(second):
+            # 和 generateProducts 一样按行优先编号
+            product_id = i * len(second) + j + 1
+            name = first_word + " " + second_word
+            db.execute("INSERT INTO products (id, name, description, price) VALUES (?, ?, ?, ?)",
+                       (product_id, name, name + " " + description[j], rnd.randrange(240)))
+
+            count = rnd.randrange(5) + 1
+            for k in range(count):
+                db.execute("INSERT INTO comments (productId, text, postedAt) VALUES (?, ?, ?)",
+                           (product_id, comments[k] + " for " + name,
+                            epoch_millis - (count - k) * DAY_MILLIS + k * HOUR_MILLIS))
+
+
+def main():
+    schema = latest_schema()
+    generator = read_generator()
+    os.makedirs(os.path.dirname(OUTPUT), exist_ok=True)
+    if os.path.exists(OUTPUT):
+        os.remove(OUTPUT)
+
+    db = sqlite3.connect(OUTPUT, isolation_level=None)
+    try:
+        # 回滚日志模式的文件格式，老版本的 SQLite 也能打开
+        db.execute("PRAGMA journal_mode = DELETE")
+        db.execute("BEGIN")
+        create_schema(db, schema)
+        insert_data(db, *generator)
+        db.execute("COMMIT")
+        db.execute("VACUUM")
+    finally:
+        db.close()
+    print("wrote %s (schema version %d, identity hash %s)"
+          % (os.path.relpath(OUTPUT, APP_DIR), schema["version"], schema["identityHash"]))
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,183 @@
+package com.davi.architectureguide.db;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.davi.architectureguide.AppExecutors;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import androidx.room.testing.MigrationTestHelper;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.framework.FrameworkSQLiteOpenHelperFactory;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/***
+ * 数据库迁移测试
+ * 1）结构来自 app/schemas 下由 Room 导出的 JSON（build.gradle 把它加到了 androidTest 的 assets），
+ * runMigrationsAndValidate 会检查迁移之后的表、索引、外键、FTS 选项和目标版本的导出结构完全一致
+ * 2）只有 2 和最新版本有 Room 导出的结构（中间的版本当时没有导出，不手写），所以只从 1、2 迁移到最新版本，
+ * 中间每一步的结果由最终的校验覆盖
+ * 3）版本 1 没有导出的结构，和 StartupMicrobenchmark 一样直接用 SQLiteDatabase 创建
+ * 4）除了结构，还检查迁移时的数据处理：全文索引重建、postedAt 的回填、评论统计，以及迁移创建的触发器能工作
+ * 5）打包的数据库文件（assets/databases）要和最新版本的结构一致，Room 复制之后才能直接打开
+ * */
+@RunWith(AndroidJUnit4.class)
+public class MigrationTest {
+
+    private static final String TEST_DB = "migration-test";
+
+    private static final int LATEST_VERSION = 7;
+
+    @Rule
+    public MigrationTestHelper mHelper = new MigrationTestHelper(
+            InstrumentationRegistry.getInstrumentation(),
+            AppDatabase.class.getCanonicalName(),
+            new FrameworkSQLiteOpenHelperFactory());
+
+    private Context mContext;
+
+    @Before
+    public void deleteDatabase() {
+        mContext = ApplicationProvider.getApplicationContext();
+        mContext.deleteDatabase(TEST_DB);
+    }
+
+    @Test
+    public void migrateFromVersion1ToLatest() throws IOException {
+        createVersion1Database();
+
+        SupportSQLiteDatabase db = mHelper.runMigrationsAndValidate(TEST_DB, LATEST_VERSION, true,
+                AppDatabase.MIGRATIONS);
+
+        //MIGRATION_1_2、MIGRATION_3_4 从已有的商品建立全文索引
+        assertEquals(1, queryLong(db, "SELECT COUNT(*) FROM productsFts WHERE productsFts MATCH 'chick*'"));
+        //MIGRATION_5_6 把没有发表时间的评论回填为 0
+        assertEquals(0, queryLong(db, "SELECT postedAt FROM comments WHERE id = 2"));
+        assertEquals(2, queryLong(db, "SELECT commentCount FROM product_comment_stats WHERE productId = 1"));
+        assertEquals(1000, queryLong(db, "SELECT lastPostedAt FROM product_comment_stats WHERE productId = 1"));
+
+        //重建 comments 之后 change_log、评论统计的触发器仍然在
+        db.execSQL("UPDATE products SET price = 150 WHERE id = 1");
+        db.execSQL("INSERT INTO comments (productId, text, postedAt) VALUES (2, 'Nice', 2000)");
+        assertEquals(1, queryLong(db, "SELECT COUNT(*) FROM change_log WHERE tableName = 'products' AND rowId = 1"));
+        assertEquals(1, queryLong(db, "SELECT COUNT(*) FROM change_log WHERE tableName = 'comments'"));
+        assertEquals(1, queryLong(db, "SELECT commentCount FROM product_comment_stats WHERE productId = 2"));
+        db.close();
+    }
+
+    @Test
+    public void migrateFromVersion2ToLatest() throws IOException {
+        mHelper.createDatabase(TEST_DB, 2).close();
+        mHelper.runMigrationsAndValidate(TEST_DB, LATEST_VERSION, true, AppDatabase.MIGRATIONS).close();
+    }
+
+    @Test
+    public void migratedDatabaseOpensWithRoom() throws IOException {
+        createVersion1Database();
+        mHelper.runMigrationsAndValidate(TEST_DB, LATEST_VERSION, true, AppDatabase.MIGRATIONS).close();
+
+        //onOpen 里的触发器检查、change_log 清理在真正的 AppDatabase 上也能执行
+        AppExecutors executors = new AppExecutors();
+        AppDatabase database = AppDatabase.create(mContext, executors, TEST_DB, false);
+        try {
+            assertNotNull(database.productDao().loadProductSync(1));
+            assertEquals(2, database.commentDao().loadLatestComments(1, 30).size());
+        } finally {
+            database.close();
+            executors.shutdown();
+        }
+    }
+
+    @Test
+    public void prepackagedDatabaseOpensWithRoom() throws IOException {
+        copyPrepackagedDatabase();
+
+        //identity hash 不一致时 Room 在打开时就会失败；触发器、全文索引、评论统计由 onOpen 补齐
+        AppExecutors executors = new AppExecutors();
+        AppDatabase database = AppDatabase.create(mContext, executors, TEST_DB, false);
+        try {
+            SupportSQLiteDatabase db = database.getOpenHelper().getWritableDatabase();
+            assertEquals(LATEST_VERSION, db.getVersion());
+            assertNotNull(database.productDao().loadProductSync(1));
+            assertEquals(5, queryLong(db, "SELECT COUNT(*) FROM productsFts WHERE productsFts MATCH 'monocle'"));
+            assertEquals(queryLong(db, "SELECT COUNT(*) FROM comments"),
+                    queryLong(db, "SELECT SUM(commentCount) FROM product_comment_stats"));
+        } finally {
+            database.close();
+            executors.shutdown();
+        }
+    }
+
+    /**
+     * 和 Room 的 createFromAsset 一样，把打包的文件原样复制成数据库文件
+     */
+    private void copyPrepackagedDatabase() throws IOException {
+        File file = mContext.getDatabasePath(TEST_DB);
+        file.getParentFile().mkdirs();
+        InputStream in = mContext.getAssets().open("databases/" + AppDatabase.DATABASE_NAME + ".db");
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 版本 1：products、comments 两张表，postedAt 可以为空
+     */
+    private void createVersion1Database() {
+        SQLiteDatabase db = mContext.openOrCreateDatabase(TEST_DB, Context.MODE_PRIVATE, null);
+        try {
+            db.execSQL("CREATE TABLE IF NOT EXISTS `products` (`id` INTEGER NOT NULL, `name` TEXT, "
+                    + "`description` TEXT, `price` INTEGER NOT NULL, PRIMARY KEY(`id`))");
+            db.execSQL("CREATE TABLE IF NOT EXISTS `comments` (`id` INTEGER PRIMARY KEY "
+                    + "AUTOINCREMENT NOT NULL, `productId` INTEGER NOT NULL, `text` TEXT, "
+                    + "`postedAt` INTEGER, FOREIGN KEY(`productId`) REFERENCES `products`(`id`) "
+                    + "ON UPDATE NO ACTION ON DELETE CASCADE )");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_comments_productId` ON `comments` (`productId`)");
+            db.execSQL("INSERT INTO products (id, name, description, price) "
+                    + "VALUES (1, 'Rubber chicken', 'With a pulley in the middle', 100)");
+            db.execSQL("INSERT INTO products (id, name, description, price) "
+                    + "VALUES (2, 'Monkey wrench', NULL, 200)");
+            db.execSQL("INSERT INTO comments (id, productId, text, postedAt) VALUES (1, 1, 'Great', 1000)");
+            db.execSQL("INSERT INTO comments (id, productId, text, postedAt) VALUES (2, 1, 'Old', NULL)");
+            db.setVersion(1);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static long queryLong(SupportSQLiteDatabase db, String sql) {
+        Cursor cursor = db.query(sql);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+}
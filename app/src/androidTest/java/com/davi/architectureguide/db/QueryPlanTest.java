@@ -0,0 +1,298 @@
+package com.davi.architectureguide.db;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import com.davi.architectureguide.AppExecutors;
+import com.davi.architectureguide.DataGenerator;
+import com.davi.architectureguide.db.dao.CommentDao;
+import com.davi.architectureguide.db.dao.ProductDao;
+import com.davi.architectureguide.db.entity.CommentEntity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import androidx.arch.core.executor.testing.InstantTaskExecutorRule;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.Observer;
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertTrue;
+
+/***
+ * 查询计划回归测试：ProductDao、CommentDao 的每个查询都不能在大表上全表扫描，有违规时测试失败
+ * 1）@Query 注解在运行时读不到，所以逐个调用 DAO 方法，通过 Room 的 QueryCallback 拿到实际执行的 SQL 和参数，
+ * 再对每条 SELECT/UPDATE/DELETE 执行 EXPLAIN QUERY PLAN
+ * 2）计划里出现 SCAN（全表扫描，或者整个索引扫描）、并且这张表的行数超过阈值时算作违规；
+ * FTS 的 MATCH（VIRTUAL TABLE）不算
+ * 3）用反射检查 DAO 接口里的每个方法都在下面的 cases 里，新增的查询忘了加也会失败
+ * 4）ALLOWED_SCANS 里是有意的全表读取，附带原因
+ * 5）带 LIMIT 的分页查询不能用临时 B 树排序（USE TEMP B-TREE FOR ORDER BY），否则每一页都要先排序整个结果集
+ * 6）在设备上运行，查询计划取决于设备自带的 SQLite：./gradlew connectedDebugAndroidTest
+ * */
+@RunWith(AndroidJUnit4.class)
+public class QueryPlanTest {
+
+    private static final long SEED = 11;
+
+    private static final int PRODUCTS = 5000;
+
+    private static final int MAX_COMMENTS_PER_PRODUCT = 10;
+
+    //行数超过这个值的表不允许全表扫描
+    private static final int SCAN_ROW_THRESHOLD = 1000;
+
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private static final Pattern SCAN = Pattern.compile("^SCAN (?:TABLE )?`?(\\w+)`?");
+
+    private static final Map<String, String> ALLOWED_SCANS = new LinkedHashMap<>();
+
+    static {
+        ALLOWED_SCANS.put("ProductDao.loadAllProducts", "读取整张表，只用于全量列表");
+        ALLOWED_SCANS.put("ProductDao.loadAllProductsSync", "读取整张表，只用于全量列表");
+        ALLOWED_SCANS.put("ProductDao.searchAllProductsByLike",
+                "全文索引重建期间的降级搜索，LIMIT 限定了返回行数");
+        ALLOWED_SCANS.put("ProductDao.searchAllProductsByLikeSync",
+                "全文索引重建期间的降级搜索，LIMIT 限定了返回行数");
+        ALLOWED_SCANS.put("ProductDao.loadIndexColumns",
+                "ProductIndex 的完整加载，只在创建快照时读一次，走覆盖索引不回表");
+    }
+
+    //不是 @Query 的方法，由 insertAll 间接调用
+    private static final Set<String> NOT_QUERIES = new HashSet<>(Arrays.asList(
+            "ProductDao.insertAllIgnoringConflicts", "ProductDao.updateAll",
+            "CommentDao.insertAllIgnoringConflicts", "CommentDao.updateAll"));
+
+    private interface Call {
+        Object run() throws InterruptedException;
+    }
+
+    //LiveData 的 postValue 直接在查询线程上分发，测试线程可以 observeForever
+    @Rule
+    public InstantTaskExecutorRule mInstantTaskExecutorRule = new InstantTaskExecutorRule();
+
+    //QueryCallback 在执行 SQL 的线程上回调，LiveData 的查询在查询线程池上执行
+    private final List<Object[]> mCaptured = Collections.synchronizedList(new ArrayList<>());
+
+    private AppExecutors mExecutors;
+
+    private AppDatabase mDatabase;
+
+    @Before
+    public void createDatabase() {
+        Context context = ApplicationProvider.getApplicationContext();
+        mExecutors = new AppExecutors();
+        mDatabase = AppDatabase.create(context, mExecutors, null, false,
+                (sql, args) -> mCaptured.add(new Object[]{sql, args.toArray()}));
+        DataGenerator.Spec spec = new DataGenerator.Spec()
+                .seed(SEED)
+                .products(PRODUCTS)
+                .commentsPerProduct(MAX_COMMENTS_PER_PRODUCT, 0);
+        BulkImporter importer = new BulkImporter(mDatabase, BulkImporter.DEFAULT_CHUNK_SIZE, true, null);
+        importer.importProducts(DataGenerator.streamProducts(spec));
+        importer.importComments(DataGenerator.streamComments(spec));
+    }
+
+    @After
+    public void closeDatabase() {
+        mDatabase.close();
+        mExecutors.shutdown();
+    }
+
+    @Test
+    public void everyDaoMethodIsChecked() {
+        Set<String> covered = cases().keySet();
+        List<String> missing = new ArrayList<>();
+        for (Class<?> dao : new Class<?>[]{ProductDao.class, CommentDao.class}) {
+            for (Method method : dao.getDeclaredMethods()) {
+                String name = dao.getSimpleName() + "." + method.getName();
+                if (Modifier.isStatic(method.getModifiers()) || method.isSynthetic()
+                        || NOT_QUERIES.contains(name)) {
+                    continue;
+                }
+                if (!covered.contains(name)) {
+                    missing.add(name);
+                }
+            }
+        }
+        assertTrue("not covered by QueryPlanTest: " + missing, missing.isEmpty());
+    }
+
+    @Test
+    public void noFullScansOnLargeTables() throws InterruptedException {
+        List<String> violations = new ArrayList<>();
+        for (Map.Entry<String, Call> entry : cases().entrySet()) {
+            violations.addAll(check(entry.getKey(), entry.getValue()));
+        }
+        assertTrue(violations.size() + " violations:\n" + join(violations), violations.isEmpty());
+    }
+
+    private Map<String, Call> cases() {
+        final ProductDao products = mDatabase.productDao();
+        final CommentDao comments = mDatabase.commentDao();
+        final List<Integer> ids = Arrays.asList(1, 2, 3);
+        final long now = System.currentTimeMillis();
+        Map<String, Call> cases = new LinkedHashMap<>();
+        cases.put("ProductDao.loadAllProducts", () -> await(products.loadAllProducts()));
+        cases.put("ProductDao.loadProductsAfter", () -> products.loadProductsAfter(100, 50));
+        cases.put("ProductDao.loadProductsBefore", () -> products.loadProductsBefore(100, 50));
+        cases.put("ProductDao.loadProductsWithCommentStatsAfter",
+                () -> products.loadProductsWithCommentStatsAfter(100, 50));
+        cases.put("ProductDao.loadProductsWithCommentStatsBefore",
+                () -> products.loadProductsWithCommentStatsBefore(100, 50));
+        cases.put("ProductDao.loadProductsWithCommentStatsByPriceAfter",
+                () -> products.loadProductsWithCommentStatsByPriceAfter(500, 2000, 500, "mon", 10, 50));
+        cases.put("ProductDao.loadProductsWithCommentStatsByPriceBefore",
+                () -> products.loadProductsWithCommentStatsByPriceBefore(1500, 0, 1500, "mon", 10, 50));
+        cases.put("ProductDao.insertAll", () -> {
+            products.insertAll(Collections.singletonList(products.loadProductSync(1)));
+            return null;
+        });
+        cases.put("ProductDao.loadProduct", () -> await(products.loadProduct(1)));
+        cases.put("ProductDao.loadProductSync", () -> products.loadProductSync(1));
+        cases.put("ProductDao.loadAllProductsSync", products::loadAllProductsSync);
+        cases.put("ProductDao.loadProductsByIds", () -> products.loadProductsByIds(ids));
+        cases.put("ProductDao.loadIndexColumns", () -> drain(products.loadIndexColumns()));
+        cases.put("ProductDao.loadIndexColumnsByIds", () -> drain(products.loadIndexColumnsByIds(ids)));
+        cases.put("ProductDao.searchProductMatches", () -> drain(products.searchProductMatches("mon*")));
+        cases.put("ProductDao.searchAllProductsByLike",
+                () -> await(products.searchAllProductsByLike("%mon%", 100)));
+        cases.put("ProductDao.searchAllProductsByLikeSync",
+                () -> products.searchAllProductsByLikeSync("%mon%", 100));
+        cases.put("CommentDao.loadLatestComments", () -> comments.loadLatestComments(1, 30));
+        cases.put("CommentDao.loadCommentsBefore", () -> comments.loadCommentsBefore(1, now, 10, 30));
+        cases.put("CommentDao.loadCommentsAfter", () -> comments.loadCommentsAfter(1, 0, 0, 30));
+        cases.put("CommentDao.loadCommentsByIds", () -> comments.loadCommentsByIds(ids));
+        cases.put("CommentDao.countCommentsOfProduct", () -> comments.countCommentsOfProduct(1, ids));
+        cases.put("CommentDao.insertAll", () -> {
+            List<CommentEntity> latest = comments.loadLatestComments(1, 1);
+            comments.insertAll(latest);
+            return null;
+        });
+        return cases;
+    }
+
+    private static Object drain(Cursor cursor) {
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static <T> T await(LiveData<T> liveData) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<T> values = new ArrayList<>();
+        Observer<T> observer = value -> {
+            if (value != null && latch.getCount() > 0) {
+                values.add(value);
+                latch.countDown();
+            }
+        };
+        liveData.observeForever(observer);
+        try {
+            assertTrue("no emission within " + TIMEOUT_SECONDS + "s",
+                    latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        } finally {
+            liveData.removeObserver(observer);
+        }
+        return values.get(0);
+    }
+
+    private List<String> check(String name, Call call) throws InterruptedException {
+        mCaptured.clear();
+        call.run();
+        List<Object[]> statements;
+        synchronized (mCaptured) {
+            statements = new ArrayList<>(mCaptured);
+        }
+        SupportSQLiteDatabase db = mDatabase.getOpenHelper().getWritableDatabase();
+        List<String> violations = new ArrayList<>();
+        for (Object[] statement : statements) {
+            String sql = (String) statement[0];
+            if (!isCheckedStatement(sql)) {
+                continue;
+            }
+            for (String detail : explain(db, sql, (Object[]) statement[1])) {
+                if (detail.contains("TEMP B-TREE FOR") && detail.contains("ORDER BY")
+                        && sql.toUpperCase(Locale.US).contains(" LIMIT ")) {
+                    violations.add(name + ": " + detail + " in " + sql);
+                }
+                Matcher scan = SCAN.matcher(detail);
+                if (!scan.find() || detail.contains("VIRTUAL TABLE")) {
+                    continue;
+                }
+                long rows = count(db, scan.group(1));
+                if (rows > SCAN_ROW_THRESHOLD && !ALLOWED_SCANS.containsKey(name)) {
+                    violations.add(name + ": " + detail + " (" + rows + " rows) in " + sql);
+                }
+            }
+        }
+        return violations;
+    }
+
+    /**
+     * 只检查 DAO 自己的读写语句，忽略事务控制和 InvalidationTracker 的内部查询
+     */
+    private static boolean isCheckedStatement(String sql) {
+        String normalized = sql.trim().toUpperCase(Locale.US);
+        boolean dml = normalized.startsWith("SELECT") || normalized.startsWith("UPDATE")
+                || normalized.startsWith("DELETE");
+        return dml && !normalized.contains("ROOM_TABLE_MODIFICATION_LOG")
+                && !normalized.contains("SQLITE_MASTER");
+    }
+
+    private static List<String> explain(SupportSQLiteDatabase db, String sql, Object[] args) {
+        List<String> plan = new ArrayList<>();
+        Cursor cursor = db.query(new SimpleSQLiteQuery("EXPLAIN QUERY PLAN " + sql, args));
+        try {
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detail));
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan;
+    }
+
+    private static long count(SupportSQLiteDatabase db, String table) {
+        Cursor cursor = db.query("SELECT COUNT(*) FROM `" + table + "`");
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String join(List<String> lines) {
+        StringBuilder builder = new StringBuilder();
+        for (String line : lines) {
+            builder.append(line).append('\n');
+        }
+        return builder.toString();
+    }
+}
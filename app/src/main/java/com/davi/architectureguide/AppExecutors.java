@@ -4,38 +4,86 @@ import android.os.Handler;
 import android.os.Looper;
 
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import androidx.annotation.NonNull;
 
 /***
  * 1）整个应用程序的全局执行器池。
  * 2）像这样对任务进行分组可以避免任务饥饿的影响，如：磁盘读取不等待 web 服务请求
+ * 3）磁盘读写分开：SQLite 同一时间只能有一个写入者，所以写入用单线程串行执行；
+ * WAL 模式下读可以和写并发，读用一个按 CPU 核数限定大小的线程池，长时间的批量写入不会挡住读
+ * 4）定时任务（例如 WAL 检查点）用一个单独的定时线程触发，真正的工作再交给对应的执行器
+ * 5）后台维护任务（WAL 检查点、指标导出）有自己的单线程，不占用写入线程，长时间的导入期间也能执行
  * */
 public class AppExecutors {
 
-    private final Executor mDiskIO;
+    private static final int MIN_READ_THREADS = 2;
+
+    private static final int MAX_READ_THREADS = 4;
+
+    private final MeteredExecutor mDiskIO;
+
+    private final MeteredExecutor mDiskRead;
 
     private final Executor mNetworkIO;
 
     private final Executor mMainThread;
 
-    private AppExecutors(Executor diskIO, Executor networkIO, Executor mainThread) {
-        this.mDiskIO = diskIO;
+    private final Executor mDiffIO;
+
+    private final ScheduledExecutorService mScheduler;
+
+    private final Executor mMaintenance;
+
+    //shutdown 时要关闭的线程池（未经 MeteredExecutor 包装的原始执行器）
+    private final Executor[] mOwned;
+
+    private AppExecutors(Executor diskIO, Executor diskRead, Executor networkIO, Executor mainThread,
+                         Executor diffIO, ScheduledExecutorService scheduler, Executor maintenance) {
+        this.mDiskIO = new MeteredExecutor("diskIO", diskIO);
+        this.mDiskRead = new MeteredExecutor("diskRead", diskRead);
         this.mNetworkIO = networkIO;
         this.mMainThread = mainThread;
+        this.mDiffIO = diffIO;
+        this.mScheduler = scheduler;
+        this.mMaintenance = maintenance;
+        this.mOwned = new Executor[]{diskIO, diskRead, networkIO, diffIO, scheduler, maintenance};
     }
 
     public AppExecutors() {
-        this(Executors.newSingleThreadExecutor(),
+        this(Executors.newSingleThreadExecutor(new NamedThreadFactory("disk-write")),
+                Executors.newFixedThreadPool(readThreadCount(), new NamedThreadFactory("disk-read")),
                 Executors.newFixedThreadPool(3),
-                new MainThreadExecutor());
+                new MainThreadExecutor(),
+                Executors.newSingleThreadExecutor(),
+                Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("scheduler")),
+                Executors.newSingleThreadExecutor(new NamedThreadFactory("maintenance")));
+    }
+
+    private static int readThreadCount() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(MIN_READ_THREADS, Math.min(MAX_READ_THREADS, cores));
     }
 
+    /**
+     * 串行的写入执行器，所有写数据库的操作（包括 Room 的事务）都在这里执行
+     */
     public Executor diskIO() {
         return mDiskIO;
     }
 
+    /**
+     * 只读查询的线程池，Room 的查询（LiveData、分页）也使用它
+     */
+    public Executor diskRead() {
+        return mDiskRead;
+    }
+
     public Executor networkIO() {
         return mNetworkIO;
     }
@@ -44,6 +92,54 @@ public class AppExecutors {
         return mMainThread;
     }
 
+    /**
+     * 列表差异计算（DiffUtil）专用的后台线程，不和磁盘读写抢线程
+     */
+    public Executor diffIO() {
+        return mDiffIO;
+    }
+
+    /**
+     * 定时触发用的线程，只负责计时，耗时的工作提交到其他执行器上
+     */
+    public ScheduledExecutorService scheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * 后台维护任务用的单线程，和写入线程分开，不会被导入、事务挡住
+     */
+    public Executor maintenance() {
+        return mMaintenance;
+    }
+
+    /**
+     * 读线程池的统计，用来判断当前是不是读高峰
+     */
+    public MeteredExecutor diskReadMetrics() {
+        return mDiskRead;
+    }
+
+    /**
+     * 磁盘执行器的排队深度、等待时间统计
+     */
+    public MeteredExecutor[] diskMetrics() {
+        return new MeteredExecutor[]{mDiskIO, mDiskRead};
+    }
+
+    /***
+     * 关闭所有后台线程池，已经提交的任务会执行完
+     * 1）应用全局的执行器随进程存在，不需要调用
+     * 2）基准测试、测试这种自己创建执行器的调用方，用完必须调用，否则线程（非守护线程）一直留在进程里
+     * */
+    public void shutdown() {
+        for (Executor executor : mOwned) {
+            if (executor instanceof ExecutorService) {
+                ((ExecutorService) executor).shutdown();
+            }
+        }
+    }
+
     private static class MainThreadExecutor implements Executor {
         private Handler mainThreadHandler = new Handler(Looper.getMainLooper());
 
@@ -53,5 +149,21 @@ public class AppExecutors {
         }
     }
 
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String mPrefix;
+
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            mPrefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            return new Thread(runnable, mPrefix + "-" + mCount.incrementAndGet());
+        }
+    }
+
 
 }
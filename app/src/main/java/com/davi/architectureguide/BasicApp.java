@@ -3,6 +3,8 @@ package com.davi.architectureguide;
 import android.app.Application;
 
 import com.davi.architectureguide.db.AppDatabase;
+import com.davi.architectureguide.db.QueryMetrics;
+import com.davi.architectureguide.ui.AdapterMetrics;
 
 public class BasicApp extends Application {
 
@@ -11,8 +13,21 @@ public class BasicApp extends Application {
     @Override
     public void onCreate() {
         super.onCreate();
+        StartupTracer.getInstance().start();
 
         mAppExecutors = new AppExecutors();
+
+        //debug 包默认打开查询、发射、列表适配器的统计，并定期写到 filesDir/metrics/metrics.json
+        if (BuildConfig.DEBUG) {
+            QueryMetrics.getInstance().setEnabled(true);
+            EmissionMetrics.getInstance().setEnabled(true);
+            AdapterMetrics.getInstance().setEnabled(true);
+            new MetricsDumper(this, mAppExecutors).start(MetricsDumper.DEFAULT_INTERVAL_MILLIS);
+        }
+    }
+
+    public AppExecutors getAppExecutors() {
+        return mAppExecutors;
     }
 
     public AppDatabase getDatabase() {
@@ -20,7 +35,7 @@ public class BasicApp extends Application {
     }
 
     public DataRepository getRepository() {
-        return DataRepository.getInstance(getDatabase());
+        return DataRepository.getInstance(getDatabase(), mAppExecutors);
     }
 
 
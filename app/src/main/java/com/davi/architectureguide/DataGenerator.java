@@ -7,8 +7,11 @@ import com.davi.architectureguide.db.entity.ProductEntity;
 import com.davi.architectureguide.model.Product;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
@@ -27,6 +30,126 @@ public class DataGenerator {
     private static final String[] COMMENTS = new String[]{
             "Comment 1", "Comment 2", "Comment 3", "Comment 4", "Comment 5", "Comment 6"};
 
+    //大数据集的词表，由上面几组词拆分而来
+    private static final String[] VOCABULARY = new String[]{
+            "special", "edition", "new", "cheap", "quality", "used", "three-headed", "monkey",
+            "rubber", "chicken", "pint", "of", "grog", "monocle", "is", "finally", "here",
+            "recommended", "by", "stan", "stanman", "the", "best", "sold", "product", "on",
+            "mêlée", "island", "fine", "\uD83D\uDCAF", "❤️", "comment", "for"};
+
+    //评论发表时间的基准（2021-06-01T00:00:00Z），不使用当前时间，同样的参数每次生成的数据一样
+    public static final long DEFAULT_EPOCH_MILLIS = 1622505600000L;
+
+    /***
+     * 大数据集的参数
+     * 1）同一个 seed、同样的参数，生成的数据完全一样，多次压测的结果才有可比性；
+ * 评论的发表时间也从固定的 epochMillis 往前推，不读取系统时钟
+     * 2）商品 id 从 1 到 productCount 连续编号，评论 id 按商品顺序从 1 连续编号，不会冲突，重复导入是覆盖
+     * 3）每个商品的评论数服从 Zipf 分布：评论数为 k 的概率与 1/(k+1)^zipfExponent 成正比，
+     * 大部分商品评论很少，少数商品评论很多；zipfExponent 为 0 时在 [0, maxCommentsPerProduct] 上均匀分布
+     * */
+    public static class Spec {
+
+        long seed = 42;
+
+        int productCount = 1000;
+
+        int maxCommentsPerProduct = 50;
+
+        double zipfExponent = 1.0;
+
+        int minNameWords = 2;
+
+        int maxNameWords = 4;
+
+        int minDescriptionWords = 6;
+
+        int maxDescriptionWords = 24;
+
+        int minCommentWords = 3;
+
+        int maxCommentWords = 30;
+
+        int minPrice = 0;
+
+        int maxPrice = 240;
+
+        //评论的发表时间分布在最近多少天内
+        int commentSpanDays = 365;
+
+        //评论发表时间的上限，见 DEFAULT_EPOCH_MILLIS
+        long epochMillis = DEFAULT_EPOCH_MILLIS;
+
+        public Spec seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public Spec products(int productCount) {
+            this.productCount = checkNotNegative(productCount, "productCount");
+            return this;
+        }
+
+        public Spec commentsPerProduct(int maxCommentsPerProduct, double zipfExponent) {
+            this.maxCommentsPerProduct = checkNotNegative(maxCommentsPerProduct, "maxCommentsPerProduct");
+            this.zipfExponent = zipfExponent;
+            return this;
+        }
+
+        public Spec nameWords(int min, int max) {
+            this.minNameWords = checkRange(min, max, "nameWords");
+            this.maxNameWords = max;
+            return this;
+        }
+
+        public Spec descriptionWords(int min, int max) {
+            this.minDescriptionWords = checkRange(min, max, "descriptionWords");
+            this.maxDescriptionWords = max;
+            return this;
+        }
+
+        public Spec commentWords(int min, int max) {
+            this.minCommentWords = checkRange(min, max, "commentWords");
+            this.maxCommentWords = max;
+            return this;
+        }
+
+        public Spec prices(int min, int max) {
+            this.minPrice = checkRange(min, max, "prices");
+            this.maxPrice = max;
+            return this;
+        }
+
+        public Spec commentSpanDays(int days) {
+            this.commentSpanDays = checkNotNegative(days, "commentSpanDays");
+            return this;
+        }
+
+        public Spec epochMillis(long epochMillis) {
+            this.epochMillis = epochMillis;
+            return this;
+        }
+
+        public int getProductCount() {
+            return productCount;
+        }
+
+        private static int checkNotNegative(int value, String name) {
+            if (value < 0) {
+                throw new IllegalArgumentException(name + " must not be negative: " + value);
+            }
+            return value;
+        }
+
+        private static int checkRange(int min, int max, String name) {
+            if (min < 0 || max < min) {
+                throw new IllegalArgumentException(name + " must satisfy 0 <= min <= max: "
+                        + min + ", " + max);
+            }
+            return min;
+        }
+    }
+
     public static List<ProductEntity> generateProducts() {
         List<ProductEntity> products = new ArrayList<>(FIRST.length * SECOND.length);
         Random rnd = new Random();
@@ -36,7 +159,8 @@ public class DataGenerator {
                 product.setName(FIRST[i] + " " + SECOND[j]);
                 product.setDescription(product.getName() + " " + DESCRIPTION[j]);
                 product.setPrice(rnd.nextInt(240));
-                product.setId(FIRST.length * i + j + 1);
+                //按行优先编号：FIRST、SECOND 变长以后也不会重复
+                product.setId(i * SECOND.length + j + 1);
                 products.add(product);
             }
         }
@@ -54,7 +178,7 @@ public class DataGenerator {
                 CommentEntity comment = new CommentEntity();
                 comment.setProductId(product.getId());
                 comment.setText(COMMENTS[i] + " for " + product.getName());
-                comment.setPostedAt(new Date(System.currentTimeMillis()
+                comment.setPostedAt(new Date(DEFAULT_EPOCH_MILLIS
                         - TimeUnit.DAYS.toMillis(commentsNumber - i) + TimeUnit.HOURS.toMillis(i)));
                 comments.add(comment);
             }
@@ -62,4 +186,108 @@ public class DataGenerator {
 
         return comments;
     }
+
+    /**
+     * 逐条生成 spec.productCount 个商品，不会把它们一起放进内存，配合 BulkImporter 使用
+     */
+    public static Iterator<ProductEntity> streamProducts(final Spec spec) {
+        final Random rnd = new Random(spec.seed);
+        return new Iterator<ProductEntity>() {
+
+            private int mNextId = 1;
+
+            @Override
+            public boolean hasNext() {
+                return mNextId <= spec.productCount;
+            }
+
+            @Override
+            public ProductEntity next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ProductEntity product = new ProductEntity();
+                product.setId(mNextId++);
+                product.setName(words(rnd, spec.minNameWords, spec.maxNameWords));
+                product.setDescription(words(rnd, spec.minDescriptionWords, spec.maxDescriptionWords));
+                product.setPrice(spec.minPrice + rnd.nextInt(spec.maxPrice - spec.minPrice + 1));
+                return product;
+            }
+        };
+    }
+
+    /**
+     * 逐条生成所有商品的评论，按商品 id 顺序，需要在商品导入之后写入
+     */
+    public static Iterator<CommentEntity> streamComments(final Spec spec) {
+        //和商品用不同的随机序列，两者可以独立生成
+        final Random rnd = new Random(spec.seed * 31 + 17);
+        final double[] cdf = zipfCdf(spec.maxCommentsPerProduct, spec.zipfExponent);
+        final long span = Math.max(1, TimeUnit.DAYS.toMillis(spec.commentSpanDays));
+        return new Iterator<CommentEntity>() {
+
+            private int mProductId;
+
+            private int mRemaining;
+
+            private int mNextId = 1;
+
+            @Override
+            public boolean hasNext() {
+                while (mRemaining == 0 && mProductId < spec.productCount) {
+                    mProductId++;
+                    mRemaining = sample(cdf, rnd.nextDouble());
+                }
+                return mRemaining > 0;
+            }
+
+            @Override
+            public CommentEntity next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                mRemaining--;
+                CommentEntity comment = new CommentEntity();
+                comment.setId(mNextId++);
+                comment.setProductId(mProductId);
+                comment.setText(words(rnd, spec.minCommentWords, spec.maxCommentWords));
+                comment.setPostedAt(new Date(spec.epochMillis - (long) (rnd.nextDouble() * span)));
+                return comment;
+            }
+        };
+    }
+
+    /**
+     * 评论数 0..max 的累积分布，P(k) ∝ 1/(k+1)^exponent
+     */
+    private static double[] zipfCdf(int max, double exponent) {
+        double[] cdf = new double[max + 1];
+        double total = 0;
+        for (int k = 0; k <= max; k++) {
+            total += 1 / Math.pow(k + 1, exponent);
+            cdf[k] = total;
+        }
+        for (int k = 0; k <= max; k++) {
+            cdf[k] /= total;
+        }
+        return cdf;
+    }
+
+    private static int sample(double[] cdf, double uniform) {
+        int index = Arrays.binarySearch(cdf, uniform);
+        int k = index >= 0 ? index : -index - 1;
+        return Math.min(k, cdf.length - 1);
+    }
+
+    private static String words(Random rnd, int min, int max) {
+        int count = min + rnd.nextInt(max - min + 1);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                builder.append(' ');
+            }
+            builder.append(VOCABULARY[rnd.nextInt(VOCABULARY.length)]);
+        }
+        return builder.toString();
+    }
 }
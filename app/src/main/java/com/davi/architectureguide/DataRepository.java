@@ -2,13 +2,40 @@ package com.davi.architectureguide;
 
 
 import com.davi.architectureguide.db.AppDatabase;
+import com.davi.architectureguide.db.ChangeFeed;
+import com.davi.architectureguide.db.DeltaLiveData;
+import com.davi.architectureguide.db.IncrementalLiveData;
+import com.davi.architectureguide.db.ProductFilter;
+import com.davi.architectureguide.db.ProductIndex;
+import com.davi.architectureguide.db.ProductSearchRanker;
 import com.davi.architectureguide.db.entity.CommentEntity;
 import com.davi.architectureguide.db.entity.ProductEntity;
+import com.davi.architectureguide.db.entity.ProductWithCommentStats;
+import com.davi.architectureguide.db.paging.CommentPagingSource;
+import com.davi.architectureguide.db.paging.PriceProductPagingSource;
+import com.davi.architectureguide.db.paging.ProductPagingSource;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
 
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MediatorLiveData;
+import androidx.lifecycle.MutableLiveData;
+import androidx.lifecycle.Transformations;
+import androidx.room.InvalidationTracker;
+import androidx.paging.Pager;
+import androidx.paging.PagingConfig;
+import androidx.paging.PagingData;
+import androidx.paging.PagingLiveData;
 
 /**
  * Repository handling the work with products and comments.
@@ -17,7 +44,167 @@ public class DataRepository {
 
     private static DataRepository sInstance;
 
+    /***
+     * 分页配置
+     * 1）pageSize：每页从数据库取的行数
+     * 2）prefetchDistance：距离已加载数据末尾多少行时开始预取下一页
+     * 3）maxSize：内存中最多保留的行数，超出后丢弃离可见区域最远的页，内存只和可见窗口+预取距离有关
+     * */
+    private static final int PAGE_SIZE = 50;
+
+    private static final int PREFETCH_DISTANCE = PAGE_SIZE;
+
+    private static final int MAX_CACHED_ITEMS = PAGE_SIZE * 2 + PREFETCH_DISTANCE * 4;
+
+    /***
+     * 搜索结果的上限
+     * 1）全文索引的全部匹配都参与 BM25 排序，每个匹配只读取 rowid 和 matchinfo，边读边排序，只保留前 SEARCH_RESULT_LIMIT 个
+     * 2）SEARCH_RESULT_LIMIT：排序后读取并返回给界面的商品数（降级的 LIKE 搜索也使用这个上限）
+     * */
+    private static final int SEARCH_RESULT_LIMIT = 100;
+
+    //搜索结果缓存的大小上限（估算的字节数）
+    private static final int SEARCH_CACHE_MAX_BYTES = 2 * 1024 * 1024;
+
+    private static final PagingConfig PAGING_CONFIG = new PagingConfig(PAGE_SIZE,
+            PREFETCH_DISTANCE, false, PAGE_SIZE * 2, MAX_CACHED_ITEMS);
+
+    //EmissionMetrics 里的数据流名字，界面显示之后用同样的名字调用 onRendered
+    public static final String STREAM_PRODUCTS = "products";
+
+    public static final String STREAM_PAGED_PRODUCTS = "paged_products";
+
+    public static final String STREAM_SEARCH = "search";
+
+    //评论分页，热门商品可能有上万条评论
+    private static final int COMMENT_PAGE_SIZE = 30;
+
+    private static final PagingConfig COMMENT_PAGING_CONFIG = new PagingConfig(COMMENT_PAGE_SIZE,
+            COMMENT_PAGE_SIZE, false, COMMENT_PAGE_SIZE * 2, COMMENT_PAGE_SIZE * 6);
+
+    //预取的商品详情：最多保留多少个商品、多久之后过期
+    private static final int DETAIL_CACHE_MAX_ENTRIES = 16;
+
+    private static final long DETAIL_CACHE_TTL_MILLIS = 30_000;
+
+    //同时进行的预取个数上限，快速滑动时不会占满读线程池
+    private static final int MAX_PREFETCHES_IN_FLIGHT = 8;
+
+    //IN (...) 里的参数个数不能超过 SQLite 的上限（999）
+    private static final int MAX_IDS_PER_QUERY = 500;
+
     private final AppDatabase mDatabase;
+
+    private final AppExecutors mExecutors;
+
+    //只读取 change_log 中的增量变更，而不是每次写入都重新查询整张表
+    private final ChangeFeed mChangeFeed;
+
+    //按需创建，见 getProductIndex
+    private ProductIndex mProductIndex;
+
+    private final SearchResultCache mSearchCache = new SearchResultCache(SEARCH_CACHE_MAX_BYTES);
+
+    private final ProductDetailCache mDetailCache =
+            new ProductDetailCache(DETAIL_CACHE_MAX_ENTRIES, DETAIL_CACHE_TTL_MILLIS);
+
+    //正在预取的商品 id，和 mStalePrefetches 一起由 mDetailCache 加锁保护
+    private final Set<Integer> mPrefetching = new HashSet<>();
+
+    //预取期间商品或评论有变化的商品 id，这些预取的结果直接丢弃
+    private final Set<Integer> mStalePrefetches = new HashSet<>();
+
+    /**
+     * 商品有变化时只移除这几个商品的预取详情
+     */
+    private final ChangeFeed.Listener mDetailProductsListener = new ChangeFeed.Listener() {
+        @Override
+        public void onChanged(long seq, @NonNull Set<Integer> changedIds,
+                              @NonNull Set<Integer> deletedIds) {
+            synchronized (mDetailCache) {
+                for (Integer productId : changedIds) {
+                    invalidateDetailLocked(productId);
+                }
+                for (Integer productId : deletedIds) {
+                    invalidateDetailLocked(productId);
+                }
+            }
+        }
+
+        @Override
+        public void onReset() {
+            invalidateAllDetails();
+        }
+    };
+
+    /***
+     * 评论有变化时只移除受影响的商品
+     * 1）删除的评论只能按缓存里的第一页判断：在某个第一页里就移除那个商品，不在任何第一页里的删除不会改变第一页；
+     * 正在进行的预取可能读到了它，全部丢弃
+     * 2）新增、修改的评论需要知道属于哪个商品，放到读线程上按 id 查询，不阻塞变更流的分发；
+     * 没有缓存也没有正在进行的预取时不查询
+     * */
+    private final ChangeFeed.Listener mDetailCommentsListener = new ChangeFeed.Listener() {
+        @Override
+        public void onChanged(long seq, @NonNull Set<Integer> changedIds,
+                              @NonNull Set<Integer> deletedIds) {
+            synchronized (mDetailCache) {
+                if (!deletedIds.isEmpty()) {
+                    for (Map.Entry<Integer, ProductDetailCache.Entry> cached
+                            : mDetailCache.snapshot().entrySet()) {
+                        if (containsAny(cached.getValue().comments, deletedIds)) {
+                            invalidateDetailLocked(cached.getKey());
+                        }
+                    }
+                    mStalePrefetches.addAll(mPrefetching);
+                }
+                if (changedIds.isEmpty() || (mDetailCache.size() == 0 && mPrefetching.isEmpty())) {
+                    return;
+                }
+            }
+            final List<Integer> commentIds = new ArrayList<>(changedIds);
+            mExecutors.diskRead().execute(() -> {
+                Set<Integer> productIds = new HashSet<>();
+                for (int start = 0; start < commentIds.size(); start += MAX_IDS_PER_QUERY) {
+                    List<Integer> chunk = commentIds.subList(start,
+                            Math.min(commentIds.size(), start + MAX_IDS_PER_QUERY));
+                    for (CommentEntity comment : mDatabase.commentDao().loadCommentsByIds(chunk)) {
+                        productIds.add(comment.getProductId());
+                    }
+                }
+                synchronized (mDetailCache) {
+                    for (Integer productId : productIds) {
+                        invalidateDetailLocked(productId);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onReset() {
+            invalidateAllDetails();
+        }
+    };
+
+    //products 表每变化一次加一；正在使用的搜索结果通过它重新查询，也用来丢弃变化前开始的查询结果
+    private final MutableLiveData<Integer> mProductsVersion = new MutableLiveData<>(0);
+
+    private int mProductsVersionValue;
+
+    /**
+     * products 表有变化时清空搜索缓存
+     */
+    private final InvalidationTracker.Observer mProductsObserver = new InvalidationTracker.Observer("products") {
+        @Override
+        public void onInvalidated(@NonNull Set<String> tables) {
+            int version;
+            synchronized (mSearchCache) {
+                mSearchCache.invalidate();
+                version = ++mProductsVersionValue;
+            }
+            mProductsVersion.postValue(version);
+        }
+    };
     /***
      * ----------------
      * MediatorLiveData
@@ -29,46 +216,357 @@ public class DataRepository {
      * */
     private MediatorLiveData<List<ProductEntity>> mObservableProducts;
 
-    private DataRepository(final AppDatabase database) {
+    private DataRepository(final AppDatabase database, final AppExecutors executors) {
         mDatabase = database;
+        mExecutors = executors;
+        mChangeFeed = database.getChangeFeed();
         mObservableProducts = new MediatorLiveData<>();
 
-        //监听 productDao的数据变化
-        mObservableProducts.addSource(mDatabase.productDao().loadAllProducts(),
+        //整张列表只是增量变化流之上的适配器
+        mObservableProducts.addSource(new IncrementalLiveData<>(getProductDeltas()),
                 productEntities -> {
                     if (mDatabase.getDatabaseCreated().getValue() != null) {
+                        EmissionMetrics.getInstance().onEmitted(STREAM_PRODUCTS);
                         mObservableProducts.postValue(productEntities);
                     }
                 });
+
+        //addObserver、loadLatestSeq 需要访问数据库，放到后台线程
+        executors.diskRead().execute(() -> {
+            mDatabase.getInvalidationTracker().addObserver(mProductsObserver);
+            mChangeFeed.addListener("products", mDetailProductsListener);
+            mChangeFeed.addListener("comments", mDetailCommentsListener);
+            long seq = mChangeFeed.loadLatestSeq();
+            mChangeFeed.startFrom(mDetailProductsListener, seq);
+            mChangeFeed.startFrom(mDetailCommentsListener, seq);
+        });
     }
 
-    public static DataRepository getInstance(final AppDatabase database) {
+    public static DataRepository getInstance(final AppDatabase database, final AppExecutors executors) {
         if (sInstance == null) {
             synchronized (DataRepository.class) {
                 if (sInstance == null) {
-                    sInstance = new DataRepository(database);
+                    sInstance = new DataRepository(database, executors);
                 }
             }
         }
         return sInstance;
     }
 
+    /**
+     * 不经过单例创建，给基准测试用（配合 {@link AppDatabase#create}）
+     */
+    @VisibleForTesting
+    public static DataRepository create(final AppDatabase database, final AppExecutors executors) {
+        return new DataRepository(database, executors);
+    }
+
     /**
      * Get the list of products from the database and get notified when the data changes.
+     * 注意：这里会把整张表读进内存，每次变化都复制一次整张列表；列表界面请使用 {@link #getPagedProducts()}，
+     * 只关心变化时用 {@link #getProductDeltas()}
      */
     public LiveData<List<ProductEntity>> getProducts() {
         return mObservableProducts;
     }
 
+    /**
+     * products 表的增量变化流：变为活跃时先发出一个 reset 的完整 Delta，之后只发出变化的行，
+     * 见 {@link DeltaLiveData}。每次调用返回一个新的流，只能有一个观察者
+     */
+    public DeltaLiveData<ProductEntity> getProductDeltas() {
+        return new DeltaLiveData<ProductEntity>(mChangeFeed, "products", mExecutors.diskRead(),
+                mExecutors.mainThread()) {
+            @Override
+            protected List<ProductEntity> loadAll() {
+                return mDatabase.productDao().loadAllProductsSync();
+            }
+
+            @Override
+            protected List<ProductEntity> loadByIds(List<Integer> ids) {
+                return mDatabase.productDao().loadProductsByIds(ids);
+            }
+
+            @Override
+            protected int getId(ProductEntity product) {
+                return product.getId();
+            }
+        };
+    }
+
+    /**
+     * Get the products page by page, keyed on the product id. Only the pages around the
+     * visible window are kept in memory. Each row carries the product's comment statistics.
+     */
+    public LiveData<PagingData<ProductWithCommentStats>> getPagedProducts() {
+        return getPagedProducts(ProductFilter.NONE);
+    }
+
+    /**
+     * 按价格区间过滤、按价格排序的分页商品，排序和过滤都在 SQL 里沿 (price, name) 索引完成，
+     * 见 {@link ProductFilter}
+     */
+    public LiveData<PagingData<ProductWithCommentStats>> getPagedProducts(final ProductFilter filter) {
+        //数据库创建（预填充）完成之后才开始分页加载；同样的值不再重新创建 Pager
+        return metered(STREAM_PAGED_PRODUCTS, Transformations.switchMap(
+                Transformations.distinctUntilChanged(mDatabase.getDatabaseCreated()),
+                created -> filter.isByPrice()
+                        ? PagingLiveData.getLiveData(new Pager<>(PAGING_CONFIG,
+                                () -> new PriceProductPagingSource(mDatabase, filter)))
+                        : PagingLiveData.getLiveData(new Pager<>(PAGING_CONFIG,
+                                () -> new ProductPagingSource(mDatabase)))));
+    }
+
+    /**
+     * 有预取的详情时先发出它（第一帧直接显示），之后跟随数据库的实时数据。需要在主线程调用
+     */
     public LiveData<ProductEntity> loadProduct(final int productId) {
-        return mDatabase.productDao().loadProduct(productId);
+        LiveData<ProductEntity> product = mDatabase.productDao().loadProduct(productId);
+        ProductDetailCache.Entry cached = mDetailCache.getFresh(productId);
+        return cached == null ? product : startWith(cached.product, product);
+    }
+
+    /**
+     * 商品的评论，按发表时间倒序分页，翻页的代价只和页大小有关
+     */
+    public LiveData<PagingData<CommentEntity>> getPagedComments(final int productId) {
+        LiveData<PagingData<CommentEntity>> comments = PagingLiveData.getLiveData(
+                new Pager<>(COMMENT_PAGING_CONFIG, () -> new CommentPagingSource(mDatabase, productId)));
+        //有预取的第一页时先显示它，Pager 的第一页加载完成后替换（内容相同，差异计算后不会有变化）
+        ProductDetailCache.Entry cached = mDetailCache.getFresh(productId);
+        return cached == null ? comments : startWith(PagingData.from(cached.comments), comments);
+    }
+
+    /***
+     * 预取商品详情（商品和第一页评论），在读线程上执行，结果放进 {@link ProductDetailCache}
+     * 1）已经有没过期的缓存、正在预取、或者同时进行的预取太多时直接忽略
+     * 2）预取期间这个商品或它的评论有变化时丢弃结果，不缓存可能过期的数据
+     * */
+    public void prefetchProduct(final int productId) {
+        synchronized (mDetailCache) {
+            if (mDetailCache.containsFresh(productId) || mPrefetching.contains(productId)
+                    || mPrefetching.size() >= MAX_PREFETCHES_IN_FLIGHT) {
+                return;
+            }
+            mPrefetching.add(productId);
+        }
+        mExecutors.diskRead().execute(() -> {
+            ProductEntity product = null;
+            List<CommentEntity> comments = null;
+            try {
+                product = mDatabase.productDao().loadProductSync(productId);
+                if (product != null) {
+                    comments = mDatabase.commentDao().loadLatestComments(productId, COMMENT_PAGE_SIZE);
+                }
+            } finally {
+                synchronized (mDetailCache) {
+                    mPrefetching.remove(productId);
+                    boolean stale = mStalePrefetches.remove(productId);
+                    if (product != null && !stale) {
+                        mDetailCache.put(productId, new ProductDetailCache.Entry(product, comments));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * 移除这个商品的预取详情；正在预取时丢弃预取的结果。需要持有 mDetailCache 的锁
+     */
+    private void invalidateDetailLocked(int productId) {
+        mDetailCache.invalidate(productId);
+        if (mPrefetching.contains(productId)) {
+            mStalePrefetches.add(productId);
+        }
     }
 
-    public LiveData<List<CommentEntity>> loadComments(final int productId) {
-        return mDatabase.commentDao().loadComments(productId);
+    private void invalidateAllDetails() {
+        synchronized (mDetailCache) {
+            mDetailCache.invalidate();
+            mStalePrefetches.addAll(mPrefetching);
+        }
+    }
+
+    private static boolean containsAny(List<CommentEntity> comments, Set<Integer> ids) {
+        for (CommentEntity comment : comments) {
+            if (ids.contains(comment.getId())) {
+                return true;
+            }
+        }
+        return false;
     }
 
+    /**
+     * 预取的商品详情缓存，可以读取命中、未命中、过期、失效的次数用于监控
+     */
+    public ProductDetailCache getDetailCache() {
+        return mDetailCache;
+    }
+
+    /**
+     * 搜索商品。全文索引正在批量重建时（见 {@link AppDatabase#beginFtsBulkLoad()}），
+     * productsFts 的数据不完整，降级为 products 表上的 LIKE 查询，重建完成后自动切回全文搜索
+     */
     public LiveData<List<ProductEntity>> searchProducts(String query) {
-        return mDatabase.productDao().searchAllProducts(query);
+        final String ftsQuery = ProductSearchRanker.toFtsQuery(query);
+        if (ftsQuery == null) {
+            return metered(STREAM_SEARCH, new MutableLiveData<>(Collections.emptyList()));
+        }
+        return metered(STREAM_SEARCH, Transformations.switchMap(mDatabase.isFtsRebuilding(), rebuilding -> {
+            if (Boolean.TRUE.equals(rebuilding)) {
+                return mDatabase.productDao().searchAllProductsByLike(
+                        "%" + escapeLike(query) + "%", SEARCH_RESULT_LIMIT);
+            }
+            //products 表变化后缓存被清空，正在显示的搜索结果重新查询
+            return Transformations.switchMap(mProductsVersion,
+                    version -> searchProductsCached(query, ftsQuery));
+        }));
+    }
+
+    /***
+     * 查询顺序：
+     * 1）缓存里有同样的查询，直接返回
+     * 2）缓存里有一个更宽泛、而且没有被截断的查询（"mon*" 之于 "monk*"），在内存里过滤它的结果，
+     * 过滤后保持原来的相关度顺序
+     * 3）都没有，再查数据库：逐行读取匹配的 rowid 和 matchinfo，用大小为 SEARCH_RESULT_LIMIT 的堆按 BM25 排序，
+     * 只读取前 SEARCH_RESULT_LIMIT 个商品
+     * 4）查询前后都同步检查全文索引是否在重建（isFtsRebuilding 的 postValue 可能还没送达），
+     * 重建中改用 LIKE 查询，结果不放进缓存
+     * */
+    private LiveData<List<ProductEntity>> searchProductsCached(String query, String ftsQuery) {
+        final String key = ftsQuery.toLowerCase(Locale.ROOT);
+        MutableLiveData<List<ProductEntity>> results = new MutableLiveData<>();
+        SearchResultCache.Entry cached = mSearchCache.get(key);
+        if (cached != null) {
+            results.setValue(cached.products);
+            return results;
+        }
+
+        SearchResultCache.Entry superset;
+        int supersetVersion;
+        synchronized (mSearchCache) {
+            superset = mSearchCache.findSuperset(key);
+            supersetVersion = mProductsVersionValue;
+        }
+        if (superset != null) {
+            String[] tokens = ProductSearchRanker.tokens(key);
+            List<ProductEntity> products = new ArrayList<>();
+            for (ProductEntity product : superset.products) {
+                if (ProductSearchRanker.matches(product, tokens)) {
+                    products.add(product);
+                }
+            }
+            synchronized (mSearchCache) {
+                //过滤期间表发生了变化，superset 可能是旧的，不放进缓存（变化之后会重新查询）
+                if (supersetVersion == mProductsVersionValue) {
+                    mSearchCache.put(key, new SearchResultCache.Entry(products, true));
+                }
+            }
+            results.setValue(products);
+            return results;
+        }
+
+        mExecutors.diskRead().execute(() -> {
+            int version;
+            synchronized (mSearchCache) {
+                version = mProductsVersionValue;
+            }
+            if (mDatabase.isFtsBulkLoading()) {
+                results.postValue(searchByLike(query));
+                return;
+            }
+            ProductSearchRanker.Ranking ranking =
+                    ProductSearchRanker.search(mDatabase.productDao(), ftsQuery, SEARCH_RESULT_LIMIT);
+            if (mDatabase.isFtsBulkLoading()) {
+                //查询期间开始了重建，productsFts 可能已经不完整
+                results.postValue(searchByLike(query));
+                return;
+            }
+            List<ProductEntity> products = loadProductsInOrder(ranking.ids);
+            //结果没有被截断，说明已经是全部匹配
+            boolean complete = products.size() == ranking.matchCount;
+            synchronized (mSearchCache) {
+                //查询期间表发生了变化，结果可能是旧的，不放进缓存（变化之后会重新查询）
+                if (version == mProductsVersionValue) {
+                    mSearchCache.put(key, new SearchResultCache.Entry(products, complete));
+                }
+            }
+            results.postValue(products);
+        });
+        return results;
+    }
+
+    /**
+     * 按 ids 的顺序读取商品，已经被删除的跳过
+     */
+    private List<ProductEntity> loadProductsInOrder(List<Integer> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Map<Integer, ProductEntity> byId = new HashMap<>();
+        for (ProductEntity product : mDatabase.productDao().loadProductsByIds(ids)) {
+            byId.put(product.getId(), product);
+        }
+        List<ProductEntity> products = new ArrayList<>(ids.size());
+        for (Integer id : ids) {
+            ProductEntity product = byId.get(id);
+            if (product != null) {
+                products.add(product);
+            }
+        }
+        return products;
+    }
+
+    private List<ProductEntity> searchByLike(String query) {
+        return mDatabase.productDao().searchAllProductsByLikeSync(
+                "%" + escapeLike(query) + "%", SEARCH_RESULT_LIMIT);
+    }
+
+    /**
+     * 搜索缓存，可以读取命中、未命中、淘汰、失效的次数用于监控
+     */
+    public SearchResultCache getSearchCache() {
+        return mSearchCache;
+    }
+
+    /***
+     * 商品的内存列式快照（价格过滤、排序），第一次调用时创建并在后台加载，之后随 products 表增量更新；
+     * 加载完成前 {@link ProductIndex#isLoaded()} 为 false
+     * 1）可选的 API，目前没有调用方，不调用就不会加载，也没有内存和监听的开销
+     * 2）价格分页（{@link PriceProductPagingSource}）没有改用它：同一价格内分页按 (name, id) 排序，
+     * ProductIndex 按 id 排序，加载完成前后列表顺序会不一样
+     * */
+    public synchronized ProductIndex getProductIndex() {
+        if (mProductIndex == null) {
+            mProductIndex = new ProductIndex(mDatabase, mChangeFeed, mExecutors.diskRead());
+            mProductIndex.start();
+        }
+        return mProductIndex;
+    }
+
+    /**
+     * 先发出 value，之后转发 source 的值。需要在主线程调用
+     */
+    private static <T> LiveData<T> startWith(T value, LiveData<T> source) {
+        MediatorLiveData<T> result = new MediatorLiveData<>();
+        result.setValue(value);
+        result.addSource(source, result::setValue);
+        return result;
+    }
+
+    /**
+     * 每发出一个值记录一次，见 {@link EmissionMetrics}
+     */
+    private static <T> LiveData<T> metered(final String stream, LiveData<T> source) {
+        final MediatorLiveData<T> result = new MediatorLiveData<>();
+        result.addSource(source, value -> {
+            EmissionMetrics.getInstance().onEmitted(stream);
+            result.setValue(value);
+        });
+        return result;
+    }
+
+    private static String escapeLike(String query) {
+        return query.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
     }
 }
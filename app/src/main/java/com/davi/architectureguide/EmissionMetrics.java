@@ -0,0 +1,110 @@
+package com.davi.architectureguide;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/***
+ * LiveData 发射的统计，按数据流的名字分组
+ * 1）onEmitted：数据流发出了一个新值（例如 DataRepository 的商品列表、搜索结果）
+ * 2）onRendered：界面把这个值显示出来（差异计算完成、提交到 RecyclerView 之后），
+ * 记录从最近一次发射到显示的耗时；中间被新值覆盖的发射只算次数，不算耗时
+ * 3）主线程和后台线程都可以调用
+ * */
+public class EmissionMetrics {
+
+    private static EmissionMetrics sInstance;
+
+    private final Map<String, Stream> mStreams = new TreeMap<>();
+
+    private volatile boolean mEnabled;
+
+    private EmissionMetrics() {
+    }
+
+    public static EmissionMetrics getInstance() {
+        if (sInstance == null) {
+            synchronized (EmissionMetrics.class) {
+                if (sInstance == null) {
+                    sInstance = new EmissionMetrics();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public void onEmitted(String stream) {
+        if (mEnabled) {
+            stream(stream).onEmitted(System.nanoTime());
+        }
+    }
+
+    public void onRendered(String stream) {
+        if (mEnabled) {
+            stream(stream).onRendered(System.nanoTime());
+        }
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        synchronized (mStreams) {
+            for (Map.Entry<String, Stream> entry : mStreams.entrySet()) {
+                json.put(entry.getKey(), entry.getValue().toJson());
+            }
+        }
+        return json;
+    }
+
+    private Stream stream(String name) {
+        synchronized (mStreams) {
+            Stream stream = mStreams.get(name);
+            if (stream == null) {
+                stream = new Stream();
+                mStreams.put(name, stream);
+            }
+            return stream;
+        }
+    }
+
+    private static class Stream {
+
+        private final LatencyHistogram mEmissionToRender = new LatencyHistogram();
+
+        private long mEmissions;
+
+        //还没有显示的最近一次发射，0 表示没有
+        private long mPendingSince;
+
+        synchronized void onEmitted(long now) {
+            mEmissions++;
+            mPendingSince = now;
+        }
+
+        void onRendered(long now) {
+            long since;
+            synchronized (this) {
+                since = mPendingSince;
+                mPendingSince = 0;
+            }
+            if (since != 0) {
+                mEmissionToRender.record(now - since);
+            }
+        }
+
+        JSONObject toJson() throws JSONException {
+            long emissions;
+            synchronized (this) {
+                emissions = mEmissions;
+            }
+            return new JSONObject()
+                    .put("emissions", emissions)
+                    .put("emission_to_render", mEmissionToRender.toJson());
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.davi.architectureguide;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/***
+ * 耗时直方图
+ * 1）按 2 的幂分桶：第 i 个桶是 (2^(i-1), 2^i] 微秒，最后一个桶放超过约 1 秒的值
+ * 2）记录一次只是一次数组自增，没有分配，可以放在热路径上
+ * 3）百分位数返回所在桶的上界，精度是 2 倍以内，足够看出量级和长尾
+ * */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 22;
+
+    private final long[] mCounts = new long[BUCKETS];
+
+    private long mCount;
+
+    private long mTotalNanos;
+
+    private long mMaxNanos;
+
+    public synchronized void record(long nanos) {
+        long micros = Math.max(0, nanos) / 1000;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        mCounts[bucket]++;
+        mCount++;
+        mTotalNanos += nanos;
+        mMaxNanos = Math.max(mMaxNanos, nanos);
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @param percentile 0 ~ 100
+     * @return 所在桶的上界（毫秒），没有数据时返回 0
+     */
+    public synchronized double percentileMillis(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(mCount * percentile / 100d);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if (seen >= Math.max(1, rank)) {
+                return i == BUCKETS - 1 ? mMaxNanos / 1e6 : (1L << i) / 1000d;
+            }
+        }
+        return mMaxNanos / 1e6;
+    }
+
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONArray buckets = new JSONArray();
+        for (long count : mCounts) {
+            buckets.put(count);
+        }
+        return new JSONObject()
+                .put("count", mCount)
+                .put("mean_ms", mCount == 0 ? 0 : mTotalNanos / 1e6 / mCount)
+                .put("p50_ms", percentileMillis(50))
+                .put("p90_ms", percentileMillis(90))
+                .put("p99_ms", percentileMillis(99))
+                .put("max_ms", mMaxNanos / 1e6)
+                //第 i 个是 (2^(i-1), 2^i] 微秒的次数
+                .put("buckets_pow2_us", buckets);
+    }
+}
@@ -5,12 +5,19 @@ import androidx.appcompat.app.AppCompatActivity
 import com.davi.architectureguide.model.Product
 import com.davi.architectureguide.ui.ProductFragment
 import com.davi.architectureguide.ui.ProductListFragment
+import com.davi.architectureguide.ui.SharedViewPool
 
 class MainActivity : AppCompatActivity() {
 
+    /** 商品列表和详情页共用的 ViewHolder 池，跳转时不需要重新 inflate 条目 */
+    val sharedViewPool = SharedViewPool()
+
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         setContentView(R.layout.main_activity)
+        // 第一帧之后、主线程空闲时预先创建条目
+        sharedViewPool.prewarm(this, SharedViewPool.DEFAULT_PREWARM_PRODUCT_ITEMS,
+            SharedViewPool.DEFAULT_PREWARM_COMMENT_ITEMS)
 
         // Add product list fragment if this is first creation
         if (savedInstanceState == null) {
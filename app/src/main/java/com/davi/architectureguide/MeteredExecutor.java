@@ -0,0 +1,98 @@
+package com.davi.architectureguide;
+
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+
+/***
+ * 带统计的执行器
+ * 1）queue depth：已经提交、还没开始执行的任务数（当前值和历史最大值）
+ * 2）wait time：任务从提交到开始执行等了多久（平均值和最大值）
+ * 用来判断任务是不是在某个执行器上排队，例如读操作被长时间的批量写入挡住
+ * */
+public class MeteredExecutor implements Executor {
+
+    private final String mName;
+
+    private final Executor mDelegate;
+
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+
+    private final AtomicLong mTaskCount = new AtomicLong();
+
+    private final AtomicLong mTotalWaitNanos = new AtomicLong();
+
+    private final AtomicLong mMaxWaitNanos = new AtomicLong();
+
+    public MeteredExecutor(String name, Executor delegate) {
+        mName = name;
+        mDelegate = delegate;
+    }
+
+    @Override
+    public void execute(@NonNull Runnable command) {
+        final long submittedAt = System.nanoTime();
+        updateMax(mMaxQueueDepth, mQueueDepth.incrementAndGet());
+        mDelegate.execute(() -> {
+            long waitNanos = System.nanoTime() - submittedAt;
+            mQueueDepth.decrementAndGet();
+            mTaskCount.incrementAndGet();
+            mTotalWaitNanos.addAndGet(waitNanos);
+            updateMax(mMaxWaitNanos, waitNanos);
+            command.run();
+        });
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    public long getTaskCount() {
+        return mTaskCount.get();
+    }
+
+    public long getAverageWaitMillis() {
+        long count = mTaskCount.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(mTotalWaitNanos.get() / count);
+    }
+
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mMaxWaitNanos.get());
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s[queue=%d,maxQueue=%d,tasks=%d,avgWaitMs=%d,maxWaitMs=%d]",
+                mName, getQueueDepth(), getMaxQueueDepth(), getTaskCount(),
+                getAverageWaitMillis(), getMaxWaitMillis());
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+}
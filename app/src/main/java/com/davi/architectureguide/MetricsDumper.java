@@ -0,0 +1,118 @@
+package com.davi.architectureguide;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.davi.architectureguide.db.QueryMetrics;
+import com.davi.architectureguide.ui.AdapterMetrics;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * 定期把运行时指标写到本地 JSON 文件：<filesDir>/metrics/metrics.json，不依赖网络，用 adb pull 取出
+ * 1）queries：{@link QueryMetrics}，每条 DAO 语句的耗时直方图、行数，以及每张表的失效次数
+ * 2）emissions：{@link EmissionMetrics}，LiveData 的发射次数和发射到显示的耗时
+ * 3）adapters：{@link AdapterMetrics}，列表适配器的 inflate、bind、diff 耗时和掉帧归因
+ * 4）executors：磁盘执行器的排队深度和等待时间；startup：{@link StartupTracer} 的阶段耗时
+ * 5）先写临时文件再重命名，读取方不会读到写了一半的文件
+ * */
+public class MetricsDumper {
+
+    private static final String TAG = "MetricsDumper";
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 60_000;
+
+    private final File mFile;
+
+    private final AppExecutors mExecutors;
+
+    private ScheduledFuture<?> mFuture;
+
+    public MetricsDumper(Context context, AppExecutors executors) {
+        mFile = new File(new File(context.getFilesDir(), "metrics"), "metrics.json");
+        mExecutors = executors;
+    }
+
+    public synchronized void start(long intervalMillis) {
+        if (mFuture != null) {
+            return;
+        }
+        //序列化和写文件放在维护线程上，不占用数据库的写入线程；定时线程只负责触发
+        mFuture = mExecutors.scheduler().scheduleWithFixedDelay(
+                () -> mExecutors.maintenance().execute(this::dump),
+                intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (mFuture != null) {
+            mFuture.cancel(false);
+            mFuture = null;
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * 立即写一次，需要在后台线程调用
+     */
+    public void dump() {
+        try {
+            write(snapshot().toString(2));
+        } catch (JSONException | IOException e) {
+            Log.w(TAG, "Cannot dump metrics to " + mFile, e);
+        }
+    }
+
+    public JSONObject snapshot() throws JSONException {
+        JSONObject executors = new JSONObject();
+        for (MeteredExecutor executor : mExecutors.diskMetrics()) {
+            executors.put(executor.getName(), new JSONObject()
+                    .put("queue_depth", executor.getQueueDepth())
+                    .put("max_queue_depth", executor.getMaxQueueDepth())
+                    .put("tasks", executor.getTaskCount())
+                    .put("avg_wait_ms", executor.getAverageWaitMillis())
+                    .put("max_wait_ms", executor.getMaxWaitMillis()));
+        }
+        JSONObject startup = new JSONObject();
+        for (Map.Entry<String, Long> timing : StartupTracer.getInstance().getTimings().entrySet()) {
+            startup.put(timing.getKey(), timing.getValue());
+        }
+        return new JSONObject()
+                .put("timestamp", System.currentTimeMillis())
+                .put("queries", QueryMetrics.getInstance().toJson())
+                .put("emissions", EmissionMetrics.getInstance().toJson())
+                .put("adapters", AdapterMetrics.getInstance().toJson())
+                .put("executors", executors)
+                .put("startup", startup);
+    }
+
+    private void write(String json) throws IOException {
+        File parent = mFile.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), Charset.forName("UTF-8"));
+        try {
+            writer.write(json);
+        } finally {
+            writer.close();
+        }
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Cannot rename " + tmp + " to " + mFile);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.davi.architectureguide;
+
+import android.os.SystemClock;
+import android.util.LruCache;
+
+import com.davi.architectureguide.db.entity.CommentEntity;
+import com.davi.architectureguide.db.entity.ProductEntity;
+
+import java.util.List;
+
+import androidx.annotation.Nullable;
+
+/***
+ * 预取的商品详情：商品本身和第一页评论
+ * 1）按条目个数限制大小，最近最少使用的先淘汰
+ * 2）每个条目有过期时间（TTL），过期后 {@link #getFresh} 不再返回它，
+ * 预取只是为了让详情页的第一帧不显示加载中，之后仍然以数据库的实时数据为准
+ * 3）商品或它的评论有变化时只移除这个商品（{@link #invalidate(int)}），批量导入之后整个清空；
+ * 失效用 remove 而不是 evictAll，不计入 LruCache 的淘汰次数
+ * 4）{@link #getFresh} 计入命中率并更新 LRU 顺序；只想知道“有没有”时用 {@link #containsFresh}，不影响统计
+ * 5）过期的条目先移除再 get，计为一次未命中，而不是命中
+ * */
+public class ProductDetailCache extends LruCache<Integer, ProductDetailCache.Entry> {
+
+    public static class Entry {
+
+        public final ProductEntity product;
+
+        //按发表时间倒序的第一页
+        public final List<CommentEntity> comments;
+
+        final long loadedAt = SystemClock.elapsedRealtime();
+
+        public Entry(ProductEntity product, List<CommentEntity> comments) {
+            this.product = product;
+            this.comments = comments;
+        }
+    }
+
+    private final long mTtlMillis;
+
+    private int mExpiredCount;
+
+    private int mInvalidationCount;
+
+    public ProductDetailCache(int maxEntries, long ttlMillis) {
+        super(maxEntries);
+        mTtlMillis = ttlMillis;
+    }
+
+    /**
+     * 没有过期的条目，没有或者已经过期时返回 null
+     */
+    @Nullable
+    public synchronized Entry getFresh(int productId) {
+        Entry entry = snapshot().get(productId);
+        if (entry != null && isExpired(entry)) {
+            remove(productId);
+            mExpiredCount++;
+        }
+        return get(productId);
+    }
+
+    /**
+     * 是否有没有过期的条目：不算命中或未命中，也不改变 LRU 顺序。
+     * snapshot 会复制整个表，条目个数很少，代价可以忽略
+     */
+    public synchronized boolean containsFresh(int productId) {
+        Entry entry = snapshot().get(productId);
+        return entry != null && !isExpired(entry);
+    }
+
+    private boolean isExpired(Entry entry) {
+        return SystemClock.elapsedRealtime() - entry.loadedAt > mTtlMillis;
+    }
+
+    /**
+     * 这个商品或者它的评论有变化
+     */
+    public synchronized void invalidate(int productId) {
+        if (remove(productId) != null) {
+            mInvalidationCount++;
+        }
+    }
+
+    /**
+     * 整个清空，批量导入之后使用
+     */
+    public synchronized void invalidate() {
+        for (Integer productId : snapshot().keySet()) {
+            invalidate(productId);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return super.toString().replace("]", ",size=" + size() + ",expired=" + mExpiredCount
+                + ",invalidations=" + mInvalidationCount + "]");
+    }
+}
@@ -0,0 +1,113 @@
+package com.davi.architectureguide;
+
+import android.util.LruCache;
+
+import com.davi.architectureguide.db.ProductSearchRanker;
+import com.davi.architectureguide.db.entity.ProductEntity;
+
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.Nullable;
+
+/***
+ * 搜索结果的 LRU 缓存
+ * 1）key 是规范化之后的查询（见 {@link com.davi.architectureguide.db.ProductSearchRanker#toFtsQuery}）
+ * 2）按估算的内存字节数计算大小，而不是按条目个数，结果很多的查询占用更多的配额
+ * 3）LruCache 自带命中、未命中、淘汰次数的统计，可以直接用于监控；
+ * 失效清空也会计入 LruCache 的 evictionCount，所以单独记录清空掉的条目数，
+ * {@link #capacityEvictionCount()} 只包含因为容量不够的淘汰
+ * 4）complete 的结果包含了查询的全部匹配，更具体的查询可以直接在内存里过滤它（见 {@link #findSuperset}）
+ * */
+public class SearchResultCache extends LruCache<String, SearchResultCache.Entry> {
+
+    public static class Entry {
+
+        public final List<ProductEntity> products;
+
+        //没有被 LIMIT 截断，包含了全部匹配的商品
+        public final boolean complete;
+
+        public Entry(List<ProductEntity> products, boolean complete) {
+            this.products = products;
+            this.complete = complete;
+        }
+    }
+
+    //对象头、字段、引用等的粗略估算
+    private static final int LIST_OVERHEAD_BYTES = 32;
+
+    private static final int ROW_OVERHEAD_BYTES = 64;
+
+    private int mInvalidationCount;
+
+    //失效时清空掉的条目数，包含在 evictionCount 里
+    private int mInvalidatedEntryCount;
+
+    public SearchResultCache(int maxSizeBytes) {
+        super(maxSizeBytes);
+    }
+
+    @Override
+    protected int sizeOf(String key, Entry entry) {
+        int size = LIST_OVERHEAD_BYTES + key.length() * 2;
+        for (ProductEntity product : entry.products) {
+            size += ROW_OVERHEAD_BYTES + length(product.getName()) * 2
+                    + length(product.getDescription()) * 2;
+        }
+        return size;
+    }
+
+    /**
+     * 找一个结果一定包含 key 全部结果的完整缓存（例如查询 "monk*" 时找到 "mon*"），
+     * 有多个时选词最长、最具体的那个；没有时返回 null
+     */
+    @Nullable
+    public synchronized Entry findSuperset(String key) {
+        String[] tokens = ProductSearchRanker.tokens(key);
+        Entry best = null;
+        int bestLength = -1;
+        for (Map.Entry<String, Entry> cached : snapshot().entrySet()) {
+            if (!cached.getValue().complete || cached.getKey().length() <= bestLength) {
+                continue;
+            }
+            if (ProductSearchRanker.isRefinementOf(tokens, ProductSearchRanker.tokens(cached.getKey()))) {
+                best = cached.getValue();
+                bestLength = cached.getKey().length();
+            }
+        }
+        return best;
+    }
+
+    /**
+     * products 表有变化时整个清空
+     */
+    public synchronized void invalidate() {
+        mInvalidationCount++;
+        int evictions = evictionCount();
+        evictAll();
+        mInvalidatedEntryCount += evictionCount() - evictions;
+    }
+
+    public synchronized int invalidationCount() {
+        return mInvalidationCount;
+    }
+
+    /**
+     * 因为容量不够被淘汰的条目数，不包括失效时清空的
+     */
+    public synchronized int capacityEvictionCount() {
+        return evictionCount() - mInvalidatedEntryCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return super.toString().replace("]", ",size=" + size()
+                + ",evictions=" + capacityEvictionCount() + ",invalidations=" + mInvalidationCount
+                + ",invalidatedEntries=" + mInvalidatedEntryCount + "]");
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+}
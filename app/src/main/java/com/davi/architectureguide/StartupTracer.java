@@ -0,0 +1,71 @@
+package com.davi.architectureguide;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/***
+ * 启动阶段耗时
+ * 1）mark：某个阶段第一次到达的时间点，从 {@link #start()}（Application.onCreate）开始计算
+ * 2）record：某个阶段本身的耗时，例如迁移、预填充数据
+ * 常用的阶段：db_open、migrate_x_y、seed、first_query、first_list，用来跟踪冷启动到第一屏列表的时间
+ * */
+public class StartupTracer {
+
+    private static final String TAG = "StartupTracer";
+
+    private static StartupTracer sInstance;
+
+    private final Map<String, Long> mTimings = new LinkedHashMap<>();
+
+    private long mStartedAt = SystemClock.elapsedRealtime();
+
+    private StartupTracer() {
+    }
+
+    public static StartupTracer getInstance() {
+        if (sInstance == null) {
+            synchronized (StartupTracer.class) {
+                if (sInstance == null) {
+                    sInstance = new StartupTracer();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    public synchronized void start() {
+        mStartedAt = SystemClock.elapsedRealtime();
+        mTimings.clear();
+    }
+
+    /**
+     * 记录阶段第一次到达的时间，之后重复调用会被忽略
+     */
+    public synchronized void mark(String phase) {
+        if (!mTimings.containsKey(phase)) {
+            put(phase, SystemClock.elapsedRealtime() - mStartedAt);
+        }
+    }
+
+    /**
+     * 记录阶段本身的耗时
+     */
+    public synchronized void record(String phase, long durationMillis) {
+        put(phase, durationMillis);
+    }
+
+    public synchronized Map<String, Long> getTimings() {
+        return new LinkedHashMap<>(mTimings);
+    }
+
+    private void put(String phase, long millis) {
+        mTimings.put(phase, millis);
+        //release 包不输出日志，需要时通过 getTimings 读取
+        if (BuildConfig.DEBUG) {
+            Log.i(TAG, phase + ": " + millis + "ms");
+        }
+    }
+}
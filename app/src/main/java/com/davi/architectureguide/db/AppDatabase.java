@@ -1,19 +1,31 @@
 package com.davi.architectureguide.db;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
 
 import com.davi.architectureguide.AppExecutors;
+import com.davi.architectureguide.BuildConfig;
 import com.davi.architectureguide.DataGenerator;
+import com.davi.architectureguide.StartupTracer;
 import com.davi.architectureguide.db.converter.DateConverter;
+import com.davi.architectureguide.db.dao.ChangeLogDao;
 import com.davi.architectureguide.db.dao.CommentDao;
 import com.davi.architectureguide.db.dao.ProductDao;
+import com.davi.architectureguide.db.entity.ChangeLogEntity;
 import com.davi.architectureguide.db.entity.CommentEntity;
+import com.davi.architectureguide.db.entity.ProductCommentStatsEntity;
 import com.davi.architectureguide.db.entity.ProductEntity;
 import com.davi.architectureguide.db.entity.ProductFtsEntity;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
@@ -23,9 +35,12 @@ import androidx.room.RoomDatabase;
 import androidx.room.TypeConverters;
 import androidx.room.migration.Migration;
 import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteStatement;
 
 
-@Database(entities = {ProductEntity.class, ProductFtsEntity.class, CommentEntity.class}, version = 2)
+@Database(entities = {ProductEntity.class, ProductFtsEntity.class, CommentEntity.class,
+        ChangeLogEntity.class, ProductCommentStatsEntity.class}, version = 7)
 
 @TypeConverters(DateConverter.class)
 //将 @TypeConverters 注释添加到 AppDatabase 类中，以便 Room 可以使用您为该 AppDatabase 中的每个实体和 DAO 定义的转换器
@@ -37,12 +52,95 @@ public abstract class AppDatabase extends RoomDatabase {
     @VisibleForTesting
     public static final String DATABASE_NAME = "basic-sample-db";
 
+    //由 app/scripts/build_prepackaged_db.py 按导出的最新结构生成
+    private static final String PREPACKAGED_DATABASE_ASSET = "databases/" + DATABASE_NAME + ".db";
+
     private final MutableLiveData<Boolean> mIsDatabaseCreated = new MutableLiveData<>();
 
+    //数据库可用的通知只发一次（文件已存在、onOpen 都可能触发）
+    private final AtomicBoolean mDatabaseCreatedPosted = new AtomicBoolean();
+
+    private final MutableLiveData<Boolean> mIsFtsRebuilding = new MutableLiveData<>(false);
+
+    //在删除同步触发器之前同步设置，查询线程直接读取；mIsFtsRebuilding 只用来通知界面重新搜索
+    private volatile boolean mFtsBulkLoading;
+
+    private StorageProfile mStorageProfile = new StorageProfile();
+
+    //手动检查点时才有
+    @Nullable
+    private CheckpointScheduler mCheckpointScheduler;
+
+    //每个数据库只有一个，日志按所有监听者的进度清理
+    private ChangeFeed mChangeFeed;
+
+    //只有 getInstance 创建的数据库才统计，基准测试自己的数据库不计入
+    @Nullable
+    private volatile QueryMetrics mQueryMetrics;
+
+    /***
+     * productsFts 是 products 的外部内容（external content）FTS 表，
+     * 靠 Room 生成的这 4 个触发器保持同步，每写一行 products 都要顺带维护一次全文索引
+     * */
+    private static final String[] FTS_SYNC_TRIGGER_NAMES = new String[]{
+            "room_fts_content_sync_productsFts_BEFORE_UPDATE",
+            "room_fts_content_sync_productsFts_BEFORE_DELETE",
+            "room_fts_content_sync_productsFts_AFTER_UPDATE",
+            "room_fts_content_sync_productsFts_AFTER_INSERT"};
+
+    private static final String[] FTS_SYNC_TRIGGERS = new String[]{
+            "CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_productsFts_BEFORE_UPDATE BEFORE UPDATE ON `products` BEGIN DELETE FROM `productsFts` WHERE `docid`=OLD.`rowid`; END",
+            "CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_productsFts_BEFORE_DELETE BEFORE DELETE ON `products` BEGIN DELETE FROM `productsFts` WHERE `docid`=OLD.`rowid`; END",
+            "CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_productsFts_AFTER_UPDATE AFTER UPDATE ON `products` BEGIN INSERT INTO `productsFts`(`docid`, `name`, `description`) VALUES (NEW.`rowid`, NEW.`name`, NEW.`description`); END",
+            "CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_productsFts_AFTER_INSERT AFTER INSERT ON `products` BEGIN INSERT INTO `productsFts`(`docid`, `name`, `description`) VALUES (NEW.`rowid`, NEW.`name`, NEW.`description`); END"};
+
+    /***
+     * product_comment_stats 由 comments 上的这 3 个触发器维护
+     * 1）插入：计数加一，最新评论时间取较大值
+     * 2）删除：计数减一，最新评论时间从 comments 里重新取（走 productId 索引），计数为 0 时删除这一行
+     * 3）修改 productId 或 postedAt：相当于从旧商品删除、再加到新商品
+     * */
+    private static final String[] COMMENT_STATS_TRIGGER_NAMES = new String[]{
+            "comment_stats_AFTER_INSERT",
+            "comment_stats_AFTER_DELETE",
+            "comment_stats_AFTER_UPDATE"};
+
+    private static final String[] COMMENT_STATS_TRIGGERS = new String[]{
+            "CREATE TRIGGER IF NOT EXISTS `comment_stats_AFTER_INSERT` AFTER INSERT ON `comments` BEGIN "
+                    + "INSERT OR IGNORE INTO `product_comment_stats`(`productId`, `commentCount`, `lastPostedAt`) "
+                    + "VALUES (NEW.`productId`, 0, NULL); "
+                    + "UPDATE `product_comment_stats` SET `commentCount` = `commentCount` + 1, "
+                    + "`lastPostedAt` = CASE WHEN `lastPostedAt` IS NULL OR NEW.`postedAt` > `lastPostedAt` "
+                    + "THEN NEW.`postedAt` ELSE `lastPostedAt` END "
+                    + "WHERE `productId` = NEW.`productId`; END",
+            "CREATE TRIGGER IF NOT EXISTS `comment_stats_AFTER_DELETE` AFTER DELETE ON `comments` BEGIN "
+                    + "UPDATE `product_comment_stats` SET `commentCount` = `commentCount` - 1, "
+                    + "`lastPostedAt` = (SELECT MAX(`postedAt`) FROM `comments` WHERE `productId` = OLD.`productId`) "
+                    + "WHERE `productId` = OLD.`productId`; "
+                    + "DELETE FROM `product_comment_stats` WHERE `productId` = OLD.`productId` "
+                    + "AND `commentCount` <= 0; END",
+            "CREATE TRIGGER IF NOT EXISTS `comment_stats_AFTER_UPDATE` AFTER UPDATE OF `productId`, `postedAt` "
+                    + "ON `comments` BEGIN "
+                    + "UPDATE `product_comment_stats` SET `commentCount` = `commentCount` - 1 "
+                    + "WHERE `productId` = OLD.`productId`; "
+                    + "INSERT OR IGNORE INTO `product_comment_stats`(`productId`, `commentCount`, `lastPostedAt`) "
+                    + "VALUES (NEW.`productId`, 0, NULL); "
+                    + "UPDATE `product_comment_stats` SET `commentCount` = `commentCount` + 1 "
+                    + "WHERE `productId` = NEW.`productId`; "
+                    + "UPDATE `product_comment_stats` SET `lastPostedAt` = (SELECT MAX(`postedAt`) "
+                    + "FROM `comments` WHERE `comments`.`productId` = `product_comment_stats`.`productId`) "
+                    + "WHERE `productId` IN (OLD.`productId`, NEW.`productId`); "
+                    + "DELETE FROM `product_comment_stats` WHERE `productId` = OLD.`productId` "
+                    + "AND `commentCount` <= 0; END"};
+
+    private static final String[] CHANGE_LOG_TABLES = new String[]{"products", "comments"};
+
     public abstract ProductDao productDao();
 
     public abstract CommentDao commentDao();
 
+    public abstract ChangeLogDao changeLogDao();
+
     /***
      * 地址：
      * https://developer.android.google.cn/training/data-storage/room/migrating-db-versions?hl=zh-cn
@@ -68,61 +166,568 @@ public abstract class AppDatabase extends RoomDatabase {
         }
     };
 
+    /**
+     * 版本 3：增加 change_log 变更日志表以及 products、comments 上的触发器
+     */
+    private static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `change_log` ("
+                    + "`seq` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `tableName` TEXT, "
+                    + "`rowId` INTEGER NOT NULL, `op` TEXT)");
+            createChangeLogTriggers(database);
+        }
+    };
+
+    /***
+     * 版本 4：productsFts 增加 2、3 字符的前缀索引
+     * 1）FTS 表的选项不能修改，只能删除后按新定义重建，再从 products 重建索引
+     * 2）FTS5（bm25、prefix='2 3'）在系统自带的 SQLite 里没有编译进去，所以仍然使用 FTS4，
+     * 排序由 {@link ProductSearchRanker} 根据 matchinfo 计算 BM25
+     * */
+    private static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            for (String trigger : FTS_SYNC_TRIGGER_NAMES) {
+                database.execSQL("DROP TRIGGER IF EXISTS " + trigger);
+            }
+            database.execSQL("DROP TABLE IF EXISTS `productsFts`");
+            database.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS `productsFts` USING FTS4("
+                    + "`name` TEXT, `description` TEXT, content=`products`, prefix=`2,3`)");
+            createFtsSyncTriggers(database);
+            database.execSQL("INSERT INTO productsFts(productsFts) VALUES('rebuild')");
+        }
+    };
+
+    /**
+     * 版本 5：增加评论统计汇总表 product_comment_stats，用现有的评论初始化
+     */
+    private static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `product_comment_stats` ("
+                    + "`productId` INTEGER NOT NULL, `commentCount` INTEGER NOT NULL, "
+                    + "`lastPostedAt` INTEGER, PRIMARY KEY(`productId`))");
+            createCommentStatsTriggers(database);
+            rebuildCommentStats(database);
+        }
+    };
+
+    /***
+     * 版本 6：comments 的 productId 索引换成 (productId, postedAt) 联合索引，用于按时间倒序分页
+     * 1）分页的键集条件要求 postedAt 非空：没有发表时间的评论回填为 0（最早），列改成 NOT NULL
+     * 2）SQLite 不能修改列的约束，只能按新定义建表、复制数据后替换；旧表上的触发器随表删除，需要重新创建
+     * */
+    private static final Migration MIGRATION_5_6 = new Migration(5, 6) {
+
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `comments_new` (`id` INTEGER PRIMARY KEY "
+                    + "AUTOINCREMENT NOT NULL, `productId` INTEGER NOT NULL, `text` TEXT, "
+                    + "`postedAt` INTEGER NOT NULL, FOREIGN KEY(`productId`) REFERENCES `products`(`id`) "
+                    + "ON UPDATE NO ACTION ON DELETE CASCADE )");
+            database.execSQL("INSERT INTO `comments_new` (`id`, `productId`, `text`, `postedAt`) "
+                    + "SELECT `id`, `productId`, `text`, IFNULL(`postedAt`, 0) FROM `comments`");
+            database.execSQL("DROP TABLE `comments`");
+            database.execSQL("ALTER TABLE `comments_new` RENAME TO `comments`");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_comments_productId_postedAt` "
+                    + "ON `comments` (`productId`, `postedAt`)");
+            createChangeLogTriggers(database, "comments");
+            createCommentStatsTriggers(database);
+            rebuildCommentStats(database);
+        }
+    };
+
+    /***
+     * 版本 7：products 增加两个覆盖索引，按价格、按名称排序的列表不再全表扫描再排序
+     * 1）(price, name)、(name, price)，索引项里自带 rowid（也就是 id），
+     * 只读取 id、name、price 的查询直接在索引里完成，不需要回表
+     * 2）description 比较长，不放进索引
+     * */
+    private static final Migration MIGRATION_6_7 = new Migration(6, 7) {
+
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_products_price_name` "
+                    + "ON `products` (`price`, `name`)");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_products_name_price` "
+                    + "ON `products` (`name`, `price`)");
+        }
+    };
+
+    //按版本顺序的全部迁移，MigrationTest 用同一组迁移验证 1 → 7
+    @VisibleForTesting
+    static final Migration[] MIGRATIONS = new Migration[]{MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4,
+            MIGRATION_4_5, MIGRATION_5_6, MIGRATION_6_7};
+
+    /***
+     * 每次 INSERT/UPDATE/DELETE 之后往 change_log 写一行 (表名, 行 id, 操作)
+     * Room 不会替我们创建这些触发器，所以新建数据库（onCreate）和迁移时都要调用
+     * */
+    private static void createChangeLogTriggers(SupportSQLiteDatabase database) {
+        for (String table : CHANGE_LOG_TABLES) {
+            createChangeLogTriggers(database, table);
+        }
+    }
+
+    private static void createChangeLogTriggers(SupportSQLiteDatabase database, String table) {
+        createChangeLogTrigger(database, table, ChangeLogEntity.OP_INSERT, "NEW");
+        createChangeLogTrigger(database, table, ChangeLogEntity.OP_UPDATE, "NEW");
+        createChangeLogTrigger(database, table, ChangeLogEntity.OP_DELETE, "OLD");
+    }
+
+    private static void createChangeLogTrigger(SupportSQLiteDatabase database, String table,
+                                               String op, String row) {
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS `change_log_" + table + "_AFTER_" + op + "` "
+                + "AFTER " + op + " ON `" + table + "` BEGIN "
+                + "INSERT INTO `change_log`(`tableName`, `rowId`, `op`) "
+                + "VALUES ('" + table + "', " + row + ".`id`, '" + op + "'); END");
+    }
+
     public static AppDatabase getInstance(final Context context, final AppExecutors executors) {
         if (sInstance == null) {
             synchronized (AppDatabase.class) {
                 if (sInstance == null) {
                     //每次创建AppDatabase实例都会产生比较大的开销，所以应该将AppDatabase设计成单例的
-                    sInstance = buildDatabase(context.getApplicationContext(), executors);
+                    Context appContext = context.getApplicationContext();
+                    sInstance = buildDatabase(appContext, newBuilder(appContext, DATABASE_NAME),
+                            executors, DATABASE_NAME, BuildConfig.SEED_WITH_GENERATOR, new StorageProfile());
                     sInstance.updateDatabaseCreated(context.getApplicationContext());
+                    sInstance.mQueryMetrics = QueryMetrics.getInstance();
+                    sInstance.mQueryMetrics.observeInvalidations(sInstance, executors.diskRead());
                 }
             }
         }
         return sInstance;
     }
 
-    private static AppDatabase buildDatabase(final Context appContext, final AppExecutors executors) {
-        return Room.databaseBuilder(appContext, AppDatabase.class, DATABASE_NAME)
+    /***
+     * 不经过单例，单独打开一个数据库，给基准测试用
+     * 1）name 为 null 时使用内存数据库
+     * 2）seed 为 false 时不预填充，由调用方用 {@link BulkImporter} 写入需要的数据量
+     * 3）迁移、触发器、执行器和正式的数据库完全一样
+     * */
+    @VisibleForTesting
+    public static AppDatabase create(final Context context, final AppExecutors executors,
+                                     @Nullable String name, boolean seed) {
+        return create(context, executors, name, seed, null);
+    }
+
+    /**
+     * queryCallback 不为 null 时，每条执行的 SQL 和绑定参数都会在当前线程回调给它
+     */
+    @VisibleForTesting
+    public static AppDatabase create(final Context context, final AppExecutors executors,
+                                     @Nullable String name, boolean seed,
+                                     @Nullable QueryCallback queryCallback) {
+        return create(context, executors, name, seed, queryCallback, new StorageProfile());
+    }
+
+    /**
+     * 使用指定的存储参数，用来对比不同的 WAL、缓存、检查点配置
+     */
+    @VisibleForTesting
+    public static AppDatabase create(final Context context, final AppExecutors executors,
+                                     @Nullable String name, boolean seed,
+                                     @Nullable QueryCallback queryCallback, StorageProfile profile) {
+        RoomDatabase.Builder<AppDatabase> builder = newBuilder(context.getApplicationContext(), name);
+        if (queryCallback != null) {
+            builder.setQueryCallback(queryCallback, Runnable::run);
+        }
+        return buildDatabase(context.getApplicationContext(), builder, executors, name, seed, profile);
+    }
+
+    private static RoomDatabase.Builder<AppDatabase> newBuilder(Context appContext, @Nullable String name) {
+        return name == null
+                ? Room.inMemoryDatabaseBuilder(appContext, AppDatabase.class)
+                : Room.databaseBuilder(appContext, AppDatabase.class, name);
+    }
+
+    private static AppDatabase buildDatabase(final Context appContext,
+                                             RoomDatabase.Builder<AppDatabase> builder,
+                                             final AppExecutors executors,
+                                             @Nullable String name, final boolean seed,
+                                             final StorageProfile profile) {
+        final StartupTracer tracer = StartupTracer.getInstance();
+        //回调在第一次打开数据库时才执行，那时实例已经创建好了
+        final AppDatabase[] instance = new AppDatabase[1];
+        if (DATABASE_NAME.equals(name) && hasPrepackagedDatabase(appContext)) {
+            //第一次打开时直接复制打包好的数据库文件，不需要在设备上逐行生成、插入；不会再走 onCreate
+            builder.createFromAsset(PREPACKAGED_DATABASE_ASSET);
+        }
+        if (name != null) {
+            //内存数据库不支持 WAL
+            builder.setJournalMode(profile.isWal() ? JournalMode.WRITE_AHEAD_LOGGING : JournalMode.TRUNCATE);
+        }
+        instance[0] = builder
                 .addCallback(new Callback() {
+
+                    //正在用 DataGenerator 预填充，完成之后才通知数据库可用
+                    private boolean mSeeding;
+
                     @Override
                     public void onCreate(@NonNull SupportSQLiteDatabase db) {
                         super.onCreate(db);
+                        createChangeLogTriggers(db);
+                        createCommentStatsTriggers(db);
 
+                        if (!seed) {
+                            return;
+                        }
+                        mSeeding = true;
                         executors.diskIO().execute(() -> {
-                            //添加延迟以模拟长时间运行的操作
-                            addDelay();
+                            long start = SystemClock.elapsedRealtime();
 
                             //生成预填充数据
-                            AppDatabase database = AppDatabase.getInstance(appContext, executors);
+                            AppDatabase database = instance[0];
                             List<ProductEntity> products = DataGenerator.generateProducts();
                             List<CommentEntity> comments = DataGenerator.generateCommentsForProducts(products);
 
                             insertData(database, products, comments);
+                            tracer.record("seed", SystemClock.elapsedRealtime() - start);
 
                             // notify that the database was created and it's ready to be used
                             database.setDatabaseCreated();
                         });
                     }
+
+                    @Override
+                    public void onOpen(@NonNull SupportSQLiteDatabase db) {
+                        super.onOpen(db);
+                        tracer.mark("db_open");
+                        profile.apply(db);
+                        //打包的数据库文件里没有这些触发器，批量导入中途退出时也可能还没恢复
+                        createChangeLogTriggers(db);
+                        //监听者都在内存里，上次运行留下的变更日志已经没有人需要了
+                        db.execSQL("DELETE FROM `change_log`");
+                        //打包的数据库文件里没有同步触发器和全文索引，上次批量导入中途退出时触发器也可能还没恢复
+                        ensureFtsSyncTriggers(db);
+                        ensureCommentStatsTriggers(db);
+
+                        if (!mSeeding) {
+                            instance[0].setDatabaseCreated();
+                        }
+                    }
                 })
-                .addMigrations(MIGRATION_1_2)//数据库迁移的时候用
+                .addMigrations(timed(MIGRATIONS))//数据库迁移的时候用
+                //查询在读线程池上并发执行，事务（写入）在单线程上串行执行
+                .setQueryExecutor(executors.diskRead())
+                .setTransactionExecutor(executors.diskIO())
                 .build();
+        instance[0].mStorageProfile = profile;
+        instance[0].mChangeFeed = new ChangeFeed(instance[0], executors.diskIO());
+        instance[0].mChangeFeed.start();
+        if (name != null && profile.isManualCheckpoint()) {
+            instance[0].mCheckpointScheduler = new CheckpointScheduler(instance[0], executors, profile);
+            instance[0].mCheckpointScheduler.start();
+        }
+        return instance[0];
     }
 
-    private static void addDelay() {
+    /**
+     * assets/databases/ 下有打包好的数据库时使用它，否则由 DataGenerator 生成（SEED_WITH_GENERATOR）
+     */
+    private static boolean hasPrepackagedDatabase(Context appContext) {
         try {
-            Thread.sleep(4000);
-        } catch (InterruptedException ignored) {
+            String[] assets = appContext.getAssets().list("databases");
+            return assets != null && Arrays.asList(assets).contains(DATABASE_NAME + ".db");
+        } catch (IOException e) {
+            return false;
         }
     }
 
+    /**
+     * 记录每个迁移的耗时
+     */
+    private static Migration[] timed(Migration[] migrations) {
+        Migration[] timed = new Migration[migrations.length];
+        for (int i = 0; i < migrations.length; i++) {
+            timed[i] = timed(migrations[i]);
+        }
+        return timed;
+    }
+
+    private static Migration timed(final Migration migration) {
+        return new Migration(migration.startVersion, migration.endVersion) {
+            @Override
+            public void migrate(@NonNull SupportSQLiteDatabase database) {
+                long start = SystemClock.elapsedRealtime();
+                migration.migrate(database);
+                StartupTracer.getInstance().record("migrate_" + startVersion + "_" + endVersion,
+                        SystemClock.elapsedRealtime() - start);
+            }
+        };
+    }
+
     private static void insertData(final AppDatabase database, final List<ProductEntity> products,
                                    final List<CommentEntity> comments) {
-        database.runInTransaction(() -> {
-            database.productDao().insertAll(products);
-            database.commentDao().insertAll(comments);
+        //分批提交，大目录也不会一直占住写锁
+        BulkImporter importer = new BulkImporter(database);
+        importer.importProducts(products.iterator());
+        importer.importComments(comments.iterator());
+    }
+
+    /**
+     * 同步触发器缺失时（批量导入被中断，或者 MIGRATION_1_2 升级上来的数据库），
+     * 重新创建触发器并重建全文索引
+     */
+    private static void ensureFtsSyncTriggers(SupportSQLiteDatabase db) {
+        int existing;
+        Cursor cursor = db.query("SELECT COUNT(*) FROM sqlite_master WHERE type = 'trigger' "
+                + "AND name LIKE 'room_fts_content_sync_productsFts_%'");
+        try {
+            existing = cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+        if (existing < FTS_SYNC_TRIGGERS.length) {
+            db.beginTransaction();
+            try {
+                createFtsSyncTriggers(db);
+                db.execSQL("INSERT INTO productsFts(productsFts) VALUES('rebuild')");
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    private static void createFtsSyncTriggers(SupportSQLiteDatabase db) {
+        for (String trigger : FTS_SYNC_TRIGGERS) {
+            db.execSQL(trigger);
+        }
+    }
+
+    /**
+     * 评论统计的触发器缺失时（打包的数据库文件、批量导入被中断），重新创建触发器并重建统计
+     */
+    private static void ensureCommentStatsTriggers(SupportSQLiteDatabase db) {
+        int existing;
+        Cursor cursor = db.query("SELECT COUNT(*) FROM sqlite_master WHERE type = 'trigger' "
+                + "AND name LIKE 'comment_stats_%'");
+        try {
+            existing = cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+        if (existing < COMMENT_STATS_TRIGGERS.length) {
+            db.beginTransaction();
+            try {
+                createCommentStatsTriggers(db);
+                rebuildCommentStats(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    private static void createCommentStatsTriggers(SupportSQLiteDatabase db) {
+        for (String trigger : COMMENT_STATS_TRIGGERS) {
+            db.execSQL(trigger);
+        }
+    }
+
+    /**
+     * 按 comments 重新计算整张统计表
+     */
+    private static void rebuildCommentStats(SupportSQLiteDatabase db) {
+        db.execSQL("DELETE FROM `product_comment_stats`");
+        db.execSQL("INSERT INTO `product_comment_stats`(`productId`, `commentCount`, `lastPostedAt`) "
+                + "SELECT `productId`, COUNT(*), MAX(`postedAt`) FROM `comments` GROUP BY `productId`");
+    }
+
+    /**
+     * 一致性检查：按 comments 重建评论统计，用于绕过触发器写入评论之后。需要在后台线程调用
+     */
+    public void rebuildCommentStats() {
+        SupportSQLiteDatabase db = getOpenHelper().getWritableDatabase();
+        runInTransaction(() -> rebuildCommentStats(db));
+    }
+
+    /***
+     * 批量导入评论前暂停评论统计的逐行维护，之后必须调用 {@link #endCommentStatsBulkLoad()}，
+     * 期间 product_comment_stats 里的数据不完整
+     * */
+    public void beginCommentStatsBulkLoad() {
+        SupportSQLiteDatabase db = getOpenHelper().getWritableDatabase();
+        for (String trigger : COMMENT_STATS_TRIGGER_NAMES) {
+            db.execSQL("DROP TRIGGER IF EXISTS " + trigger);
+        }
+    }
+
+    /**
+     * 批量导入评论结束：在同一个事务里恢复触发器并重建统计
+     */
+    public void endCommentStatsBulkLoad() {
+        SupportSQLiteDatabase db = getOpenHelper().getWritableDatabase();
+        runInTransaction(() -> {
+            createCommentStatsTriggers(db);
+            rebuildCommentStats(db);
+        });
+    }
+
+    /***
+     * 批量导入前暂停 table 上 change_log 的触发器，导入的每一行不再额外写一行日志。
+     * 之后必须调用 {@link #endChangeLogBulkLoad(String)}
+     * */
+    public void beginChangeLogBulkLoad(String table) {
+        SupportSQLiteDatabase db = getOpenHelper().getWritableDatabase();
+        runInTransaction(() -> {
+            for (String op : new String[]{ChangeLogEntity.OP_INSERT, ChangeLogEntity.OP_UPDATE,
+                    ChangeLogEntity.OP_DELETE}) {
+                db.execSQL("DROP TRIGGER IF EXISTS `change_log_" + table + "_AFTER_" + op + "`");
+            }
+        });
+    }
+
+    /**
+     * 批量导入结束：在同一个事务里恢复触发器，并写入一行 RESET，监听者收到后重新完整加载
+     */
+    public void endChangeLogBulkLoad(String table) {
+        SupportSQLiteDatabase db = getOpenHelper().getWritableDatabase();
+        runInTransaction(() -> {
+            createChangeLogTriggers(db, table);
+            db.execSQL("INSERT INTO `change_log`(`tableName`, `rowId`, `op`) VALUES (?, 0, ?)",
+                    new Object[]{table, ChangeLogEntity.OP_RESET});
+        });
+    }
+
+    /***
+     * 批量导入前暂停全文索引的同步：删除同步触发器，products 的写入不再逐行维护 productsFts。
+     * 之后必须调用 {@link #endFtsBulkLoad()}，期间搜索会降级为 LIKE 查询（见 {@link #isFtsBulkLoading()}）
+     * 1）先同步设置标记再删除触发器，删除之后开始的搜索一定能看到标记
+     * 2）删除触发器放在一个事务里，不会只删掉一部分
+     * */
+    public void beginFtsBulkLoad() {
+        mFtsBulkLoading = true;
+        mIsFtsRebuilding.postValue(true);
+        SupportSQLiteDatabase db = getOpenHelper().getWritableDatabase();
+        runInTransaction(() -> {
+            for (String trigger : FTS_SYNC_TRIGGER_NAMES) {
+                db.execSQL("DROP TRIGGER IF EXISTS " + trigger);
+            }
         });
     }
 
+    /***
+     * 批量导入结束：恢复同步触发器，一次性重建整个全文索引，然后合并索引的 b-tree 段（optimize）
+     * 1）触发器和 rebuild 放在同一个事务里，中间不会漏掉其他写入
+     * 2）optimize 比较耗时，放在事务外面
+     * */
+    public void endFtsBulkLoad() {
+        SupportSQLiteDatabase db = getOpenHelper().getWritableDatabase();
+        try {
+            runInTransaction(() -> {
+                createFtsSyncTriggers(db);
+                db.execSQL("INSERT INTO productsFts(productsFts) VALUES('rebuild')");
+            });
+            db.execSQL("INSERT INTO productsFts(productsFts) VALUES('optimize')");
+        } finally {
+            mFtsBulkLoading = false;
+            mIsFtsRebuilding.postValue(false);
+        }
+    }
+
+    /***
+     * 批量导入期间降低同步级别（见 {@link StorageProfile}），之后必须调用 {@link #endImportSynchronous()}
+     * 需要在写入线程、事务外调用
+     * */
+    public void beginImportSynchronous() {
+        mStorageProfile.applyImportSynchronous(getOpenHelper().getWritableDatabase(), true);
+    }
+
+    public void endImportSynchronous() {
+        mStorageProfile.applyImportSynchronous(getOpenHelper().getWritableDatabase(), false);
+    }
+
+    /***
+     * 批量导入之后执行 TRUNCATE 检查点，写回整个 WAL 并把文件截断，导入写入的 WAL 不会留到下一次检查点
+     * 需要在后台线程、事务外调用；内存数据库或者没有开启 WAL 时不做任何事
+     * */
+    public void truncateWal() {
+        SupportSQLiteDatabase db = getOpenHelper().getWritableDatabase();
+        if (!db.isWriteAheadLoggingEnabled() || db.inTransaction()) {
+            return;
+        }
+        if (mCheckpointScheduler != null) {
+            //计入检查点的统计
+            mCheckpointScheduler.checkpoint(CheckpointScheduler.TRUNCATE);
+            return;
+        }
+        db.query("PRAGMA wal_checkpoint(" + CheckpointScheduler.TRUNCATE + ")").close();
+    }
+
+    public StorageProfile getStorageProfile() {
+        return mStorageProfile;
+    }
+
+    /**
+     * WAL 手动检查点的调度器，自动检查点或者内存数据库时为 null
+     */
+    @Nullable
+    public CheckpointScheduler getCheckpointScheduler() {
+        return mCheckpointScheduler;
+    }
+
+    /**
+     * DAO 的查询都经过这里（DBUtil.query），统计打开时包装返回的 Cursor，见 {@link QueryMetrics}
+     */
+    @NonNull
+    @Override
+    public Cursor query(@NonNull SupportSQLiteQuery query, @Nullable CancellationSignal signal) {
+        QueryMetrics metrics = mQueryMetrics;
+        if (metrics == null || !metrics.isEnabled()) {
+            return super.query(query, signal);
+        }
+        long start = System.nanoTime();
+        return metrics.wrap(super.query(query, signal), query.getSql(), start);
+    }
+
+    /**
+     * DAO 的写入（@Insert、@Update、@Delete、写入的 @Query）都经过这里编译语句，
+     * 语句会被 Room 缓存复用，所以不管统计是否打开都包装，执行时再判断，见 {@link QueryMetrics}
+     */
+    @Override
+    public SupportSQLiteStatement compileStatement(@NonNull String sql) {
+        QueryMetrics metrics = mQueryMetrics;
+        SupportSQLiteStatement statement = super.compileStatement(sql);
+        return metrics == null ? statement : metrics.wrap(statement, sql);
+    }
+
+    @Override
+    public void close() {
+        if (mCheckpointScheduler != null) {
+            mCheckpointScheduler.stop();
+        }
+        super.close();
+    }
+
+    /**
+     * 这个数据库的变更流，products、comments 的增量变化都从这里读取
+     */
+    public ChangeFeed getChangeFeed() {
+        return mChangeFeed;
+    }
+
+    /**
+     * 全文索引是否正在批量重建，重建期间 productsFts 里的数据不完整。
+     * postValue 是异步的，只用来在状态变化时重新搜索；查询前后的判断用 {@link #isFtsBulkLoading()}
+     */
+    public LiveData<Boolean> isFtsRebuilding() {
+        return mIsFtsRebuilding;
+    }
+
+    /**
+     * 同步读取的重建标记，可以在任意线程调用
+     */
+    public boolean isFtsBulkLoading() {
+        return mFtsBulkLoading;
+    }
+
     /**
      * 检查数据库是否已经存在并通过
      */
@@ -133,7 +738,9 @@ public abstract class AppDatabase extends RoomDatabase {
     }
 
     private void setDatabaseCreated(){
-        mIsDatabaseCreated.postValue(true);
+        if (mDatabaseCreatedPosted.compareAndSet(false, true)) {
+            mIsDatabaseCreated.postValue(true);
+        }
     }
 
     public LiveData<Boolean> getDatabaseCreated() {
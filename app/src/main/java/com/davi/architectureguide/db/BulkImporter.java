@@ -0,0 +1,229 @@
+package com.davi.architectureguide.db;
+
+import android.os.SystemClock;
+
+import com.davi.architectureguide.model.Comment;
+import com.davi.architectureguide.model.Product;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteStatement;
+
+/***
+ * 批量导入
+ * 1）数据从 Iterator 里逐条读取，不需要把整个目录放进内存
+ * 2）每 chunkSize 行提交一次事务，避免一个巨大的事务长时间占住写锁
+ * 3）INSERT/UPDATE 语句只编译一次，之后每一行只需要重新绑定参数
+ * 4）UPSERT：先 INSERT OR IGNORE，已存在的行再 UPDATE；
+ * 不使用 REPLACE，REPLACE 会先删除旧行，通过外键 ON DELETE CASCADE 把商品的评论也一起删掉
+ * 5）deferIndexes：导入期间暂停派生数据的逐行维护，导入完成后一次性重建：
+ * 导入商品时是 productsFts 全文索引，导入评论时是 product_comment_stats 评论统计
+ * 6）导入期间使用 StorageProfile 里的导入同步级别（默认 NORMAL），结束后恢复
+ * 7）导入期间总是暂停 change_log 的触发器，结束时只记一条 RESET，变更流的监听者重新完整加载
+ * 8）结束后执行一次 TRUNCATE 检查点，把导入撑大的 WAL 写回并截断
+ * */
+public class BulkImporter {
+
+    public static final int DEFAULT_CHUNK_SIZE = 5000;
+
+    public interface ProgressListener {
+        /**
+         * 每提交一个事务回调一次，在导入线程上调用
+         *
+         * @param rows          已经写入的行数
+         * @param rowsPerSecond 从开始导入到现在的平均速度
+         */
+        void onProgress(long rows, double rowsPerSecond);
+    }
+
+    private static final String INSERT_PRODUCT = "INSERT OR IGNORE INTO products "
+            + "(id, name, description, price) VALUES (?, ?, ?, ?)";
+
+    private static final String UPDATE_PRODUCT = "UPDATE products "
+            + "SET name = ?, description = ?, price = ? WHERE id = ?";
+
+    private static final String INSERT_COMMENT = "INSERT OR IGNORE INTO comments "
+            + "(id, productId, text, postedAt) VALUES (?, ?, ?, ?)";
+
+    //id 为 0 的评论由数据库自动生成主键
+    private static final String INSERT_NEW_COMMENT = "INSERT INTO comments "
+            + "(productId, text, postedAt) VALUES (?, ?, ?)";
+
+    private static final String UPDATE_COMMENT = "UPDATE comments "
+            + "SET productId = ?, text = ?, postedAt = ? WHERE id = ?";
+
+    private final AppDatabase mDatabase;
+
+    private final int mChunkSize;
+
+    private final boolean mDeferIndexes;
+
+    @Nullable
+    private final ProgressListener mProgressListener;
+
+    public BulkImporter(@NonNull AppDatabase database) {
+        this(database, DEFAULT_CHUNK_SIZE, false, null);
+    }
+
+    public BulkImporter(@NonNull AppDatabase database, int chunkSize, boolean deferIndexes,
+                        @Nullable ProgressListener progressListener) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        }
+        mDatabase = database;
+        mChunkSize = chunkSize;
+        mDeferIndexes = deferIndexes;
+        mProgressListener = progressListener;
+    }
+
+    /**
+     * 导入商品，返回写入的行数。需要在后台线程调用
+     */
+    public long importProducts(@NonNull Iterator<? extends Product> products) {
+        mDatabase.beginImportSynchronous();
+        mDatabase.beginChangeLogBulkLoad("products");
+        try {
+            if (!mDeferIndexes) {
+                return writeProducts(products);
+            }
+            mDatabase.beginFtsBulkLoad();
+            try {
+                return writeProducts(products);
+            } finally {
+                //导入失败也要恢复触发器并重建，否则全文索引会一直是旧的
+                mDatabase.endFtsBulkLoad();
+            }
+        } finally {
+            //导入失败时已经写入的部分也需要通知监听者
+            mDatabase.endChangeLogBulkLoad("products");
+            mDatabase.endImportSynchronous();
+            mDatabase.truncateWal();
+        }
+    }
+
+    private long writeProducts(Iterator<? extends Product> products) {
+        SupportSQLiteDatabase db = mDatabase.getOpenHelper().getWritableDatabase();
+        SupportSQLiteStatement insert = db.compileStatement(INSERT_PRODUCT);
+        SupportSQLiteStatement update = db.compileStatement(UPDATE_PRODUCT);
+        try {
+            return importInChunks(products, product -> {
+                insert.bindLong(1, product.getId());
+                bindString(insert, 2, product.getName());
+                bindString(insert, 3, product.getDescription());
+                insert.bindLong(4, product.getPrice());
+                if (insert.executeInsert() == -1) {
+                    //已存在：原地更新，评论不受影响
+                    bindString(update, 1, product.getName());
+                    bindString(update, 2, product.getDescription());
+                    update.bindLong(3, product.getPrice());
+                    update.bindLong(4, product.getId());
+                    update.executeUpdateDelete();
+                }
+            });
+        } finally {
+            close(insert);
+            close(update);
+        }
+    }
+
+    /**
+     * 导入评论，返回写入的行数。需要在后台线程调用，评论对应的商品必须已经存在
+     */
+    public long importComments(@NonNull Iterator<? extends Comment> comments) {
+        mDatabase.beginImportSynchronous();
+        mDatabase.beginChangeLogBulkLoad("comments");
+        try {
+            if (!mDeferIndexes) {
+                return writeComments(comments);
+            }
+            mDatabase.beginCommentStatsBulkLoad();
+            try {
+                return writeComments(comments);
+            } finally {
+                mDatabase.endCommentStatsBulkLoad();
+            }
+        } finally {
+            mDatabase.endChangeLogBulkLoad("comments");
+            mDatabase.endImportSynchronous();
+            mDatabase.truncateWal();
+        }
+    }
+
+    private long writeComments(Iterator<? extends Comment> comments) {
+        SupportSQLiteDatabase db = mDatabase.getOpenHelper().getWritableDatabase();
+        SupportSQLiteStatement insert = db.compileStatement(INSERT_COMMENT);
+        SupportSQLiteStatement insertNew = db.compileStatement(INSERT_NEW_COMMENT);
+        SupportSQLiteStatement update = db.compileStatement(UPDATE_COMMENT);
+        try {
+            return importInChunks(comments, comment -> {
+                //postedAt 是 NOT NULL：没有发表时间的评论按最早处理，和 MIGRATION_5_6 的回填一致
+                long postedAt = comment.getPostedAt() == null ? 0 : comment.getPostedAt().getTime();
+                if (comment.getId() == 0) {
+                    insertNew.bindLong(1, comment.getProductId());
+                    bindString(insertNew, 2, comment.getText());
+                    insertNew.bindLong(3, postedAt);
+                    insertNew.executeInsert();
+                    return;
+                }
+                insert.bindLong(1, comment.getId());
+                insert.bindLong(2, comment.getProductId());
+                bindString(insert, 3, comment.getText());
+                insert.bindLong(4, postedAt);
+                if (insert.executeInsert() == -1) {
+                    update.bindLong(1, comment.getProductId());
+                    bindString(update, 2, comment.getText());
+                    update.bindLong(3, postedAt);
+                    update.bindLong(4, comment.getId());
+                    update.executeUpdateDelete();
+                }
+            });
+        } finally {
+            close(insert);
+            close(insertNew);
+            close(update);
+        }
+    }
+
+    private interface RowWriter<T> {
+        void write(T row);
+    }
+
+    private <T> long importInChunks(Iterator<? extends T> rows, RowWriter<T> writer) {
+        long start = SystemClock.elapsedRealtime();
+        long[] written = new long[1];
+        while (rows.hasNext()) {
+            //RoomDatabase.runInTransaction 结束时会通知 InvalidationTracker，观察者能收到变化
+            mDatabase.runInTransaction(() -> {
+                for (int i = 0; i < mChunkSize && rows.hasNext(); i++) {
+                    writer.write(rows.next());
+                    written[0]++;
+                }
+            });
+            if (mProgressListener != null) {
+                long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+                mProgressListener.onProgress(written[0], written[0] * 1000d / elapsed);
+            }
+        }
+        return written[0];
+    }
+
+    private static void bindString(SupportSQLiteStatement statement, int index, @Nullable String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.davi.architectureguide.db;
+
+import com.davi.architectureguide.db.entity.ChangeLogEntity;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import androidx.annotation.NonNull;
+import androidx.room.InvalidationTracker;
+
+/***
+ * 变更流
+ * 1）监听 change_log 表，有新的变更时只读取监听者处理过的 seq 之后的日志
+ * 2）按表名把变化的行 id 分发给监听者，监听者再按 id 读取这几行，代价只和变更的行数有关
+ * 3）每个监听者有自己的游标：{@link #addListener} 之后先 {@link #loadLatestSeq()}，再完整加载快照，
+ * 最后 {@link #startFrom}。快照之后提交的写入一定会收到；和快照重叠的那部分会再收到一次，按 id 重新读取结果不变
+ * 4）分发之后删除所有监听者都处理过的日志；没有监听者时直接删除，日志不会无限增长
+ * 5）批量导入期间 change_log 的触发器被暂停（见 {@link AppDatabase#beginChangeLogBulkLoad}），
+ * 结束时写入一条 RESET，监听者收到 {@link Listener#onReset()} 后重新完整加载
+ * 6）监听者在这个类的锁外回调，主线程上的 addListener、removeListener 不会等待分发中的数据库读取
+ * */
+public class ChangeFeed {
+
+    public interface Listener {
+        /**
+         * 在后台线程回调
+         *
+         * @param seq        这次分发之后监听者的游标：seq 之前（含）的变更都已经包含在里面
+         * @param changedIds 插入或更新过的行 id，需要重新读取
+         * @param deletedIds 删除掉的行 id
+         */
+        void onChanged(long seq, @NonNull Set<Integer> changedIds, @NonNull Set<Integer> deletedIds);
+
+        /**
+         * 这张表被批量导入整体改写过，没有逐行的日志，需要重新完整加载。在后台线程回调
+         */
+        void onReset();
+    }
+
+    //还没有调用 startFrom 的监听者：正在加载快照，这期间不能删除日志
+    private static final long PENDING = -1;
+
+    private static final class Registration {
+
+        final String tableName;
+
+        final Listener listener;
+
+        long seq = PENDING;
+
+        Registration(String tableName, Listener listener) {
+            this.tableName = tableName;
+            this.listener = listener;
+        }
+    }
+
+    private final AppDatabase mDatabase;
+
+    private final Executor mExecutor;
+
+    private final List<Registration> mRegistrations = new ArrayList<>();
+
+    //poll 串行执行，和 mRegistrations 用的锁分开
+    private final Object mPollLock = new Object();
+
+    //已经删除到的 seq，只在 poll 里读写
+    private long mPrunedSeq;
+
+    private final InvalidationTracker.Observer mObserver = new InvalidationTracker.Observer("change_log") {
+        @Override
+        public void onInvalidated(@NonNull Set<String> tables) {
+            mExecutor.execute(ChangeFeed.this::poll);
+        }
+    };
+
+    /**
+     * @param executor 执行分发和日志清理，需要能写数据库
+     */
+    public ChangeFeed(AppDatabase database, Executor executor) {
+        mDatabase = database;
+        mExecutor = executor;
+    }
+
+    /**
+     * 开始监听 change_log，数据库打开之前调用（这时 addObserver 不访问数据库）；
+     * 之后一直监听，没有监听者时也要清理日志
+     */
+    void start() {
+        mDatabase.getInvalidationTracker().addObserver(mObserver);
+    }
+
+    /**
+     * 登记监听者，不访问数据库，可以在主线程调用；之后还需要 {@link #startFrom} 才会收到变更
+     */
+    public void addListener(String tableName, Listener listener) {
+        synchronized (this) {
+            mRegistrations.add(new Registration(tableName, listener));
+        }
+    }
+
+    public void removeListener(String tableName, Listener listener) {
+        synchronized (this) {
+            Iterator<Registration> iterator = mRegistrations.iterator();
+            while (iterator.hasNext()) {
+                Registration registration = iterator.next();
+                if (registration.listener == listener && registration.tableName.equals(tableName)) {
+                    iterator.remove();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 当前最新的 seq，在完整加载快照之前读取。需要在后台线程调用
+     */
+    public long loadLatestSeq() {
+        return mDatabase.changeLogDao().loadLatestSeq();
+    }
+
+    /**
+     * 快照加载完成：之后分发 seq 之后的变更。监听者已经被移除时不做任何事
+     */
+    public void startFrom(Listener listener, long seq) {
+        synchronized (this) {
+            Registration registration = find(listener);
+            if (registration == null) {
+                return;
+            }
+            registration.seq = Math.max(registration.seq, seq);
+        }
+        mExecutor.execute(this::poll);
+    }
+
+    private void poll() {
+        synchronized (mPollLock) {
+            List<Registration> registrations = new ArrayList<>();
+            List<Long> cursors = new ArrayList<>();
+            long from = Long.MAX_VALUE;
+            synchronized (this) {
+                for (Registration registration : mRegistrations) {
+                    if (registration.seq != PENDING) {
+                        registrations.add(registration);
+                        cursors.add(registration.seq);
+                        from = Math.min(from, registration.seq);
+                    }
+                }
+            }
+
+            long latest;
+            if (registrations.isEmpty()) {
+                latest = loadLatestSeq();
+            } else {
+                List<ChangeLogEntity> changes = mDatabase.changeLogDao().loadChangesSince(from);
+                latest = changes.isEmpty() ? from : changes.get(changes.size() - 1).getSeq();
+                for (int i = 0; i < registrations.size(); i++) {
+                    dispatch(registrations.get(i), cursors.get(i), latest, changes);
+                }
+                synchronized (this) {
+                    for (Registration registration : registrations) {
+                        registration.seq = Math.max(registration.seq, latest);
+                    }
+                }
+            }
+            prune(latest);
+        }
+    }
+
+    /**
+     * 把 cursor 之后、属于这张表的变更分发给一个监听者；同一行多次变化只保留最后一次
+     */
+    private static void dispatch(Registration registration, long cursor, long latest,
+                                 List<ChangeLogEntity> changes) {
+        Set<Integer> changedIds = new HashSet<>();
+        Set<Integer> deletedIds = new HashSet<>();
+        boolean reset = false;
+        for (ChangeLogEntity change : changes) {
+            if (change.getSeq() <= cursor || !registration.tableName.equals(change.getTableName())) {
+                continue;
+            }
+            if (ChangeLogEntity.OP_RESET.equals(change.getOp())) {
+                //之后的变更也会包含在重新加载的数据里
+                reset = true;
+                break;
+            }
+            if (ChangeLogEntity.OP_DELETE.equals(change.getOp())) {
+                changedIds.remove(change.getRowId());
+                deletedIds.add(change.getRowId());
+            } else {
+                deletedIds.remove(change.getRowId());
+                changedIds.add(change.getRowId());
+            }
+        }
+        if (reset) {
+            registration.listener.onReset();
+        } else if (!changedIds.isEmpty() || !deletedIds.isEmpty()) {
+            registration.listener.onChanged(latest, changedIds, deletedIds);
+        }
+    }
+
+    /**
+     * 删除所有监听者都处理过的日志；有监听者正在加载快照时不删除。
+     * 之后登记的监听者读到的 seq 不会小于 latest，所以不会删掉它需要的日志
+     */
+    private void prune(long latest) {
+        long upTo = latest;
+        synchronized (this) {
+            for (Registration registration : mRegistrations) {
+                if (registration.seq == PENDING) {
+                    return;
+                }
+                upTo = Math.min(upTo, registration.seq);
+            }
+        }
+        if (upTo > mPrunedSeq) {
+            mDatabase.changeLogDao().deleteChangesUpTo(upTo);
+            mPrunedSeq = upTo;
+        }
+    }
+
+    private Registration find(Listener listener) {
+        for (Registration registration : mRegistrations) {
+            if (registration.listener == listener) {
+                return registration;
+            }
+        }
+        return null;
+    }
+}
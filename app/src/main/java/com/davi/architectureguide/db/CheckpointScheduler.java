@@ -0,0 +1,132 @@
+package com.davi.architectureguide.db;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import com.davi.architectureguide.AppExecutors;
+import com.davi.architectureguide.MeteredExecutor;
+
+import java.util.Locale;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+/***
+ * WAL 手动检查点（{@link StorageProfile.Checkpoint#MANUAL}）
+ * 1）每隔 checkpointIntervalMillis 在 AppExecutors 的定时线程上检查一次，检查点本身放到维护线程上执行。
+ * 检查点不需要写锁，可以和导入的事务同时进行；放在写入线程上的话，长时间导入期间一次也执行不了，WAL 会涨到整个导入的大小
+ * 2）读线程池还有任务在排队，或者上一个间隔里完成的读任务超过 readBurstTasks 时，说明正处在读高峰，推迟这一次；
+ * 连续推迟 maxDeferredCheckpoints 次后不再推迟，避免 WAL 文件一直增长
+ * 3）使用 PASSIVE 检查点：不等待读者，也不阻塞读者，读者还在用的那部分留给下一次
+ * 4）PASSIVE 不会缩小 WAL 文件，文件大小由 journal_size_limit 限制；批量导入之后执行一次 TRUNCATE（见 {@link #checkpoint(String)}）
+ * */
+public class CheckpointScheduler {
+
+    public static final String PASSIVE = "PASSIVE";
+
+    //写回整个 WAL 并把文件截断为 0，会等待正在读 WAL 的读者；SQLite 3.8.8 之前按 PASSIVE 执行
+    public static final String TRUNCATE = "TRUNCATE";
+
+    private static final String TAG = "CheckpointScheduler";
+
+    private final AppDatabase mDatabase;
+
+    private final AppExecutors mExecutors;
+
+    private final StorageProfile mProfile;
+
+    private ScheduledFuture<?> mFuture;
+
+    private long mLastReadTasks;
+
+    private int mDeferred;
+
+    private int mCheckpointCount;
+
+    private int mDeferredCount;
+
+    //最近一次检查点时 WAL 里的页数、已经写回数据库的页数
+    private long mLastWalPages = -1;
+
+    private long mLastCheckpointedPages = -1;
+
+    public CheckpointScheduler(AppDatabase database, AppExecutors executors, StorageProfile profile) {
+        mDatabase = database;
+        mExecutors = executors;
+        mProfile = profile;
+    }
+
+    public synchronized void start() {
+        if (mFuture != null) {
+            return;
+        }
+        mLastReadTasks = mExecutors.diskReadMetrics().getTaskCount();
+        mFuture = mExecutors.scheduler().scheduleWithFixedDelay(this::tick,
+                mProfile.checkpointIntervalMillis, mProfile.checkpointIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (mFuture != null) {
+            mFuture.cancel(false);
+            mFuture = null;
+        }
+    }
+
+    private synchronized void tick() {
+        MeteredExecutor reads = mExecutors.diskReadMetrics();
+        long readTasks = reads.getTaskCount();
+        boolean burst = reads.getQueueDepth() > 0 || readTasks - mLastReadTasks > mProfile.readBurstTasks;
+        mLastReadTasks = readTasks;
+        if (burst && mDeferred < mProfile.maxDeferredCheckpoints) {
+            mDeferred++;
+            mDeferredCount++;
+            return;
+        }
+        mDeferred = 0;
+        mExecutors.maintenance().execute(() -> checkpoint(PASSIVE));
+    }
+
+    /**
+     * 立即执行一次检查点，需要在后台线程、事务外调用
+     *
+     * @param mode {@link #PASSIVE} 或 {@link #TRUNCATE}
+     */
+    public void checkpoint(String mode) {
+        if (!mDatabase.isOpen()) {
+            return;
+        }
+        SupportSQLiteDatabase db = mDatabase.getOpenHelper().getWritableDatabase();
+        long start = System.nanoTime();
+        //结果：busy、WAL 里的页数、已经写回的页数
+        Cursor cursor = db.query("PRAGMA wal_checkpoint(" + mode + ")");
+        try {
+            if (cursor.moveToFirst()) {
+                synchronized (this) {
+                    mCheckpointCount++;
+                    mLastWalPages = cursor.getLong(1);
+                    mLastCheckpointedPages = cursor.getLong(2);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        Log.d(TAG, mode + " " + this + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+    }
+
+    public synchronized int getCheckpointCount() {
+        return mCheckpointCount;
+    }
+
+    public synchronized int getDeferredCount() {
+        return mDeferredCount;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "CheckpointScheduler[checkpoints=%d,deferred=%d,walPages=%d,checkpointed=%d]",
+                mCheckpointCount, mDeferredCount, mLastWalPages, mLastCheckpointedPages);
+    }
+}
@@ -0,0 +1,281 @@
+package com.davi.architectureguide.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.lifecycle.LifecycleOwner;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.Observer;
+
+/***
+ * 增量变化流：只发出变化的行，不发出整张列表
+ * 1）每次变为活跃时完整加载一次，发出一个 reset 的 {@link Delta}（changed 是全部行），观察者丢弃之前的数据
+ * 2）之后通过 {@link ChangeFeed} 只接收变化的行 id，按 id 重新读取这几行，发出 Delta(seq, changed, deletedIds)，
+ * 代价只和变化的行数有关；内存里只保留属于这个流的 id 集合，不保留行
+ * 3）完整加载之前先读取变更流的 seq，加载完成后从这个 seq 开始接收变更，加载期间提交的写入不会漏掉
+ * 4）不用 postValue（主线程来不及处理时会丢掉中间的值）：还没送到主线程的 Delta 合并成一个，
+ * 同一行只保留最后一次变化，再通过 mainThread 发出
+ * 5）Delta 不能重放给后来的观察者，所以同一时间只允许一个观察者；需要完整列表时用 {@link IncrementalLiveData}
+ * 6）每次活跃对应一个 Session，不活跃时丢弃，旧 Session 迟到的回调不会再发送数据
+ * */
+public abstract class DeltaLiveData<T> extends LiveData<DeltaLiveData.Delta<T>> {
+
+    /**
+     * 一次变化
+     */
+    public static final class Delta<T> {
+
+        //变更流里的位置，这个 Delta 包含了 seq 之前（含）的全部变化
+        public final long seq;
+
+        //为 true 时 changed 是完整的数据，观察者需要丢弃之前的数据
+        public final boolean reset;
+
+        //插入或更新过的行（包括从别处移进这个流的行）
+        @NonNull
+        public final List<T> changed;
+
+        //删除掉的行 id（包括移出这个流的行）
+        @NonNull
+        public final Set<Integer> deletedIds;
+
+        Delta(long seq, boolean reset, @NonNull List<T> changed, @NonNull Set<Integer> deletedIds) {
+            this.seq = seq;
+            this.reset = reset;
+            this.changed = Collections.unmodifiableList(changed);
+            this.deletedIds = Collections.unmodifiableSet(deletedIds);
+        }
+    }
+
+    //IN (...) 里的参数个数不能超过 SQLite 的上限（999）
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    private final ChangeFeed mChangeFeed;
+
+    private final String mTableName;
+
+    private final Executor mExecutor;
+
+    private final Executor mMainThread;
+
+    //当前活跃的 Session，只在主线程修改
+    @Nullable
+    private volatile Session mSession;
+
+    /**
+     * @param executor   完整加载和按 id 读取，在这个线程池上执行
+     * @param mainThread 发出 Delta
+     */
+    protected DeltaLiveData(ChangeFeed changeFeed, String tableName, Executor executor,
+                            Executor mainThread) {
+        mChangeFeed = changeFeed;
+        mTableName = tableName;
+        mExecutor = executor;
+        mMainThread = mainThread;
+    }
+
+    /**
+     * 完整加载，在后台线程调用
+     */
+    protected abstract List<T> loadAll();
+
+    /**
+     * 按 id 读取变化的行，在后台线程调用
+     */
+    protected abstract List<T> loadByIds(List<Integer> ids);
+
+    protected abstract int getId(T item);
+
+    /**
+     * 变化的行是否属于这个流（例如评论是否属于当前商品）
+     */
+    protected boolean accept(T item) {
+        return true;
+    }
+
+    @MainThread
+    @Override
+    public void observe(@NonNull LifecycleOwner owner, @NonNull Observer<? super Delta<T>> observer) {
+        checkNoObservers();
+        super.observe(owner, observer);
+    }
+
+    @MainThread
+    @Override
+    public void observeForever(@NonNull Observer<? super Delta<T>> observer) {
+        checkNoObservers();
+        super.observeForever(observer);
+    }
+
+    private void checkNoObservers() {
+        if (hasObservers()) {
+            throw new IllegalStateException("DeltaLiveData 只支持一个观察者");
+        }
+    }
+
+    @Override
+    protected void onActive() {
+        Session session = new Session();
+        mSession = session;
+        mChangeFeed.addListener(mTableName, session);
+        mExecutor.execute(session::load);
+    }
+
+    @Override
+    protected void onInactive() {
+        Session session = mSession;
+        mSession = null;
+        if (session != null) {
+            mChangeFeed.removeListener(mTableName, session);
+        }
+    }
+
+    private final class Session implements ChangeFeed.Listener {
+
+        //属于这个流的 id，用来判断删除、移出是否需要发出
+        private final Set<Integer> mIds = new HashSet<>();
+
+        private boolean mLoaded;
+
+        //还没送到主线程的变化
+        private long mPendingSeq;
+
+        private boolean mPendingReset;
+
+        private final Map<Integer, T> mPendingChanged = new LinkedHashMap<>();
+
+        private final Set<Integer> mPendingDeleted = new HashSet<>();
+
+        private boolean mDispatchScheduled;
+
+        synchronized void load() {
+            if (mSession != this || mLoaded) {
+                return;
+            }
+            //先读 seq 再读全部数据：两次读取之间提交的写入会再分发一次，按 id 重新读取结果不变
+            long seq = mChangeFeed.loadLatestSeq();
+            mIds.clear();
+            mPendingChanged.clear();
+            mPendingDeleted.clear();
+            for (T item : loadAll()) {
+                int id = getId(item);
+                mIds.add(id);
+                mPendingChanged.put(id, item);
+            }
+            mPendingReset = true;
+            mPendingSeq = seq;
+            mLoaded = true;
+            mChangeFeed.startFrom(this, seq);
+            scheduleDispatch();
+        }
+
+        @Override
+        public synchronized void onChanged(long seq, @NonNull Set<Integer> changedIds,
+                                           @NonNull Set<Integer> deletedIds) {
+            if (!mLoaded) {
+                //还没有完整加载过，完整加载时会读到最新的数据
+                return;
+            }
+            boolean modified = false;
+            for (Integer id : deletedIds) {
+                modified |= remove(id);
+            }
+
+            Set<Integer> missing = new HashSet<>(changedIds);
+            for (List<Integer> chunk : chunk(changedIds)) {
+                for (T item : loadByIds(chunk)) {
+                    int id = getId(item);
+                    missing.remove(id);
+                    if (accept(item)) {
+                        mIds.add(id);
+                        mPendingDeleted.remove(id);
+                        mPendingChanged.put(id, item);
+                        modified = true;
+                    } else {
+                        modified |= remove(id);
+                    }
+                }
+            }
+            //日志里有变更但已经读不到了，说明之后又被删除了
+            for (Integer id : missing) {
+                modified |= remove(id);
+            }
+
+            if (modified) {
+                mPendingSeq = Math.max(mPendingSeq, seq);
+                scheduleDispatch();
+            }
+        }
+
+        @Override
+        public void onReset() {
+            synchronized (this) {
+                mLoaded = false;
+            }
+            mExecutor.execute(this::load);
+        }
+
+        /**
+         * @return 这一行之前属于这个流
+         */
+        private boolean remove(Integer id) {
+            if (!mIds.remove(id)) {
+                return false;
+            }
+            mPendingChanged.remove(id);
+            //reset 的 Delta 本身就是完整数据，不需要再带上删除
+            if (!mPendingReset) {
+                mPendingDeleted.add(id);
+            }
+            return true;
+        }
+
+        private void scheduleDispatch() {
+            if (!mDispatchScheduled) {
+                mDispatchScheduled = true;
+                mMainThread.execute(this::dispatch);
+            }
+        }
+
+        private void dispatch() {
+            Delta<T> delta;
+            synchronized (this) {
+                mDispatchScheduled = false;
+                delta = new Delta<>(mPendingSeq, mPendingReset,
+                        new ArrayList<>(mPendingChanged.values()), new HashSet<>(mPendingDeleted));
+                mPendingReset = false;
+                mPendingChanged.clear();
+                mPendingDeleted.clear();
+            }
+            if (mSession == this) {
+                setValue(delta);
+            }
+        }
+    }
+
+    private static List<List<Integer>> chunk(Collection<Integer> ids) {
+        List<List<Integer>> chunks = new ArrayList<>();
+        List<Integer> current = new ArrayList<>(Math.min(ids.size(), MAX_IDS_PER_QUERY));
+        for (Integer id : ids) {
+            current.add(id);
+            if (current.size() == MAX_IDS_PER_QUERY) {
+                chunks.add(current);
+                current = new ArrayList<>(MAX_IDS_PER_QUERY);
+            }
+        }
+        if (!current.isEmpty()) {
+            chunks.add(current);
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,44 @@
+package com.davi.architectureguide.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import androidx.lifecycle.MediatorLiveData;
+
+/***
+ * 完整列表的 LiveData，只是 {@link DeltaLiveData} 之上的适配器
+ * 1）在主线程把每个 Delta 合并进内存快照（按 id 排序，和原来查询的 rowid 顺序一致），再发出整张列表
+ * 2）合并的代价只和变化的行数有关，发出时复制列表是 O(N)：只有需要整张列表的观察者才付这个代价，
+ * 只关心变化的观察者直接观察另一个 DeltaLiveData（它只允许一个观察者，也就是这个适配器）
+ * 3）Delta 没有改变快照时（例如删除了不在快照里的行）不发出
+ * */
+public class IncrementalLiveData<T> extends MediatorLiveData<List<T>> {
+
+    private final DeltaLiveData<T> mDeltas;
+
+    //只在主线程访问
+    private final TreeMap<Integer, T> mSnapshot = new TreeMap<>();
+
+    public IncrementalLiveData(DeltaLiveData<T> deltas) {
+        mDeltas = deltas;
+        addSource(deltas, this::apply);
+    }
+
+    private void apply(DeltaLiveData.Delta<T> delta) {
+        boolean modified = delta.reset;
+        if (delta.reset) {
+            mSnapshot.clear();
+        }
+        for (Integer id : delta.deletedIds) {
+            modified |= mSnapshot.remove(id) != null;
+        }
+        for (T item : delta.changed) {
+            mSnapshot.put(mDeltas.getId(item), item);
+            modified = true;
+        }
+        if (modified) {
+            setValue(new ArrayList<>(mSnapshot.values()));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.davi.architectureguide.db;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/***
+ * 商品列表的价格过滤和排序条件
+ * 1）NONE：不过滤，按 id 排序，走主键分页（{@link com.davi.architectureguide.db.paging.ProductPagingSource}）
+ * 2）设置了价格区间或按价格排序时，走 (price, name) 索引分页
+ * （{@link com.davi.architectureguide.db.paging.PriceProductPagingSource}），价格相同时按名称、id 排序；
+ * 只设置了价格区间时按价格升序，按 id 排序需要扫描整个区间
+ * 3）不可变，可以作为 distinctUntilChanged 的比较值
+ * */
+public final class ProductFilter {
+
+    public enum Sort {
+        ID,
+        PRICE_ASC,
+        PRICE_DESC
+    }
+
+    public static final ProductFilter NONE = new ProductFilter(null, null, Sort.ID);
+
+    @Nullable
+    private final Integer mMinPrice;
+
+    @Nullable
+    private final Integer mMaxPrice;
+
+    @NonNull
+    private final Sort mSort;
+
+    public ProductFilter(@Nullable Integer minPrice, @Nullable Integer maxPrice, @Nullable Sort sort) {
+        mMinPrice = minPrice;
+        mMaxPrice = maxPrice;
+        mSort = sort == null ? Sort.ID : sort;
+    }
+
+    public int getMinPrice() {
+        return mMinPrice == null ? Integer.MIN_VALUE : mMinPrice;
+    }
+
+    public int getMaxPrice() {
+        return mMaxPrice == null ? Integer.MAX_VALUE : mMaxPrice;
+    }
+
+    public boolean hasPriceRange() {
+        return mMinPrice != null || mMaxPrice != null;
+    }
+
+    /**
+     * 实际使用的排序：有价格区间但按 id 排序时改为价格升序
+     */
+    @NonNull
+    public Sort getSort() {
+        return mSort == Sort.ID && hasPriceRange() ? Sort.PRICE_ASC : mSort;
+    }
+
+    /**
+     * 是否需要走价格索引分页
+     */
+    public boolean isByPrice() {
+        return getSort() != Sort.ID;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ProductFilter)) {
+            return false;
+        }
+        ProductFilter that = (ProductFilter) o;
+        return getMinPrice() == that.getMinPrice() && getMaxPrice() == that.getMaxPrice()
+                && getSort() == that.getSort();
+    }
+
+    @Override
+    public int hashCode() {
+        return (getMinPrice() * 31 + getMaxPrice()) * 31 + getSort().hashCode();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "ProductFilter[min=" + mMinPrice + ",max=" + mMaxPrice + ",sort=" + getSort() + "]";
+    }
+}
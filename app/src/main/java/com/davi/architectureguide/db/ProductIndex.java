@@ -0,0 +1,465 @@
+package com.davi.architectureguide.db;
+
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+/***
+ * 商品目录的内存列式快照（可选）
+ * 1）按列存放：int[] ids、int[] prices、int[] nameRefs，名称放在去重的字符串表里，
+ * 每个商品不再是一个对象，也没有装箱
+ * 2）id → 行号用开放寻址的 int → int 哈希表，O(1) 查找
+ * 3）按价格区间过滤、按价格或名称排序只分配结果数组，不分配逐行的对象
+ * 4）第一次 {@link #start()} 时完整加载，之后通过 {@link ChangeFeed} 只读取变化的行；
+ * 完整加载前先读取变更流的 seq，加载期间提交的写入不会漏掉；
+ * 删除的行用最后一行填补，行号不稳定，对外只暴露 id
+ * 5）字符串表只增不减，完整重新加载时才清理
+ * */
+public class ProductIndex implements ChangeFeed.Listener {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    //IN (...) 里的参数个数不能超过 SQLite 的上限（999）
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    private final AppDatabase mDatabase;
+
+    private final ChangeFeed mChangeFeed;
+
+    private final Executor mExecutor;
+
+    private int[] mIds = new int[INITIAL_CAPACITY];
+
+    private int[] mPrices = new int[INITIAL_CAPACITY];
+
+    private int[] mNameRefs = new int[INITIAL_CAPACITY];
+
+    private int mSize;
+
+    private final IntIntMap mRows = new IntIntMap(INITIAL_CAPACITY);
+
+    private final List<String> mStrings = new ArrayList<>();
+
+    private final Map<String, Integer> mStringRefs = new HashMap<>();
+
+    //字符串引用 → 按字典序的名次，字符串表变化后重新计算
+    @Nullable
+    private int[] mNameRanks;
+
+    private boolean mStarted;
+
+    private boolean mLoaded;
+
+    //每次 start 加一，旧的完整加载完成后不再生效
+    private int mGeneration;
+
+    public ProductIndex(AppDatabase database, ChangeFeed changeFeed, Executor executor) {
+        mDatabase = database;
+        mChangeFeed = changeFeed;
+        mExecutor = executor;
+    }
+
+    /**
+     * 开始监听变化，并在后台线程完整加载一次
+     */
+    public void start() {
+        final int generation;
+        synchronized (this) {
+            if (mStarted) {
+                return;
+            }
+            mStarted = true;
+            generation = ++mGeneration;
+        }
+        mChangeFeed.addListener("products", this);
+        mExecutor.execute(() -> reload(generation));
+    }
+
+    public void stop() {
+        mChangeFeed.removeListener("products", this);
+        synchronized (this) {
+            mStarted = false;
+            mLoaded = false;
+        }
+    }
+
+    public synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized boolean contains(int id) {
+        return mRows.get(id) >= 0;
+    }
+
+    /**
+     * @return 价格，不存在时返回 -1
+     */
+    public synchronized int getPrice(int id) {
+        int row = mRows.get(id);
+        return row < 0 ? -1 : mPrices[row];
+    }
+
+    @Nullable
+    public synchronized String getName(int id) {
+        int row = mRows.get(id);
+        return row < 0 ? null : mStrings.get(mNameRefs[row]);
+    }
+
+    /**
+     * 价格在 [minPrice, maxPrice] 之间的商品 id，顺序不确定，需要时再调用排序方法
+     */
+    public synchronized int[] filterByPrice(int minPrice, int maxPrice) {
+        int count = 0;
+        for (int row = 0; row < mSize; row++) {
+            if (mPrices[row] >= minPrice && mPrices[row] <= maxPrice) {
+                count++;
+            }
+        }
+        int[] ids = new int[count];
+        int next = 0;
+        for (int row = 0; row < mSize && next < count; row++) {
+            if (mPrices[row] >= minPrice && mPrices[row] <= maxPrice) {
+                ids[next++] = mIds[row];
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * 按价格原地排序，价格相同时按 id 升序；不在快照里的 id 按 id 升序排在最后
+     * 排序键是 (价格 << 32 | id) 的 long，直接用 Arrays.sort(long[])，不需要 Comparator 和装箱
+     */
+    public synchronized void sortByPrice(int[] ids, boolean descending) {
+        long[] keys = new long[ids.length];
+        int present = 0;
+        int missing = ids.length;
+        for (int id : ids) {
+            int row = mRows.get(id);
+            if (row < 0) {
+                keys[--missing] = pack(0, id);
+            } else {
+                keys[present++] = priceKey(mPrices[row], id, descending);
+            }
+        }
+        unpackSorted(keys, present, ids);
+    }
+
+    /**
+     * 按名称原地排序，名称相同时按 id 升序；不在快照里的 id 按 id 升序排在最后
+     */
+    public synchronized void sortByName(int[] ids) {
+        int[] ranks = nameRanks();
+        long[] keys = new long[ids.length];
+        int present = 0;
+        int missing = ids.length;
+        for (int id : ids) {
+            int row = mRows.get(id);
+            if (row < 0) {
+                keys[--missing] = pack(0, id);
+            } else {
+                keys[present++] = pack(ranks[mNameRefs[row]], id);
+            }
+        }
+        unpackSorted(keys, present, ids);
+    }
+
+    @Override
+    public void onChanged(long seq, @NonNull Set<Integer> changedIds, @NonNull Set<Integer> deletedIds) {
+        synchronized (this) {
+            //还没有完整加载过，reload 会读到最新的数据
+            if (!mLoaded) {
+                return;
+            }
+            for (int id : deletedIds) {
+                removeRow(id);
+            }
+        }
+        List<Integer> ids = new ArrayList<>(changedIds);
+        for (int start = 0; start < ids.size(); start += MAX_IDS_PER_QUERY) {
+            List<Integer> chunk = ids.subList(start, Math.min(ids.size(), start + MAX_IDS_PER_QUERY));
+            Cursor cursor = mDatabase.productDao().loadIndexColumnsByIds(chunk);
+            try {
+                synchronized (this) {
+                    readRows(cursor);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    @Override
+    public void onReset() {
+        final int generation;
+        synchronized (this) {
+            if (!mStarted) {
+                return;
+            }
+            mLoaded = false;
+            generation = mGeneration;
+        }
+        mExecutor.execute(() -> reload(generation));
+    }
+
+    /**
+     * 先读 seq 再读快照：两次读取之间提交的写入会再分发一次，按 id 重新读取结果不变
+     */
+    private void reload(int generation) {
+        long seq = mChangeFeed.loadLatestSeq();
+        Cursor cursor = mDatabase.productDao().loadIndexColumns();
+        try {
+            synchronized (this) {
+                //已经停止或者重新 start 过，seq 可能早于新的登记，交给新的 reload
+                if (!mStarted || generation != mGeneration) {
+                    return;
+                }
+                mSize = 0;
+                mRows.clear();
+                mStrings.clear();
+                mStringRefs.clear();
+                mNameRanks = null;
+                readRows(cursor);
+                mLoaded = true;
+            }
+        } finally {
+            cursor.close();
+        }
+        mChangeFeed.startFrom(this, seq);
+    }
+
+    private void readRows(Cursor cursor) {
+        int idColumn = cursor.getColumnIndexOrThrow("id");
+        int nameColumn = cursor.getColumnIndexOrThrow("name");
+        int priceColumn = cursor.getColumnIndexOrThrow("price");
+        while (cursor.moveToNext()) {
+            int id = cursor.getInt(idColumn);
+            int row = mRows.get(id);
+            if (row < 0) {
+                row = mSize++;
+                ensureCapacity(mSize);
+                mRows.put(id, row);
+                mIds[row] = id;
+            }
+            mPrices[row] = cursor.getInt(priceColumn);
+            mNameRefs[row] = intern(cursor.isNull(nameColumn) ? "" : cursor.getString(nameColumn));
+        }
+    }
+
+    private void removeRow(int id) {
+        int row = mRows.get(id);
+        if (row < 0) {
+            return;
+        }
+        mRows.remove(id);
+        int last = --mSize;
+        if (row != last) {
+            mIds[row] = mIds[last];
+            mPrices[row] = mPrices[last];
+            mNameRefs[row] = mNameRefs[last];
+            mRows.put(mIds[row], row);
+        }
+    }
+
+    private int intern(String value) {
+        Integer ref = mStringRefs.get(value);
+        if (ref == null) {
+            ref = mStrings.size();
+            mStrings.add(value);
+            mStringRefs.put(value, ref);
+            mNameRanks = null;
+        }
+        return ref;
+    }
+
+    private int[] nameRanks() {
+        if (mNameRanks == null) {
+            String[] sorted = mStrings.toArray(new String[0]);
+            Arrays.sort(sorted);
+            int[] ranks = new int[sorted.length];
+            for (int rank = 0; rank < sorted.length; rank++) {
+                ranks[mStringRefs.get(sorted[rank])] = rank;
+            }
+            mNameRanks = ranks;
+        }
+        return mNameRanks;
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > mIds.length) {
+            int capacity = Math.max(size, mIds.length * 2);
+            mIds = Arrays.copyOf(mIds, capacity);
+            mPrices = Arrays.copyOf(mPrices, capacity);
+            mNameRefs = Arrays.copyOf(mNameRefs, capacity);
+        }
+    }
+
+    /**
+     * 降序用 ~price 而不是 -price：~price 一定还在 int 范围内，Integer.MIN_VALUE 取负会溢出
+     */
+    @VisibleForTesting
+    static long priceKey(int price, int id, boolean descending) {
+        return pack(descending ? ~price : price, id);
+    }
+
+    /**
+     * 高 32 位是有符号的排序值；id 翻转符号位后放在低 32 位，按无符号比较时负的 id 也排在正的前面
+     */
+    @VisibleForTesting
+    static long pack(int high, int id) {
+        return ((long) high << 32) | ((id ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * keys 的 [0, present) 是快照里的行，之后是不在快照里的 id，两段分别排序后解出 id 写回 ids
+     */
+    @VisibleForTesting
+    static void unpackSorted(long[] keys, int present, int[] ids) {
+        Arrays.sort(keys, 0, present);
+        Arrays.sort(keys, present, keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            ids[i] = (int) keys[i] ^ Integer.MIN_VALUE;
+        }
+    }
+
+    /***
+     * int → int 的开放寻址哈希表（线性探测），key、value 都是基本类型数组，没有 Integer 装箱和 Entry 对象
+     * 删除时把后面的元素往前挪（backward shift），不需要墓碑标记
+     * */
+    static final class IntIntMap {
+
+        private static final int EMPTY = Integer.MIN_VALUE;
+
+        private int[] mKeys;
+
+        private int[] mValues;
+
+        private int mSize;
+
+        IntIntMap(int expectedSize) {
+            allocate(tableSize(expectedSize));
+        }
+
+        /**
+         * @return 不存在时返回 -1
+         */
+        int get(int key) {
+            int mask = mKeys.length - 1;
+            for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+                int k = mKeys[i];
+                if (k == EMPTY) {
+                    return -1;
+                }
+                if (k == key) {
+                    return mValues[i];
+                }
+            }
+        }
+
+        void put(int key, int value) {
+            if (key == EMPTY) {
+                throw new IllegalArgumentException("Unsupported key: " + key);
+            }
+            //负载因子不超过 0.5
+            if ((mSize + 1) * 2 > mKeys.length) {
+                rehash(mKeys.length * 2);
+            }
+            int mask = mKeys.length - 1;
+            for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+                int k = mKeys[i];
+                if (k == EMPTY) {
+                    mKeys[i] = key;
+                    mValues[i] = value;
+                    mSize++;
+                    return;
+                }
+                if (k == key) {
+                    mValues[i] = value;
+                    return;
+                }
+            }
+        }
+
+        void remove(int key) {
+            int mask = mKeys.length - 1;
+            int hole = hash(key) & mask;
+            while (mKeys[hole] != key) {
+                if (mKeys[hole] == EMPTY) {
+                    return;
+                }
+                hole = (hole + 1) & mask;
+            }
+            for (int j = (hole + 1) & mask; mKeys[j] != EMPTY; j = (j + 1) & mask) {
+                int ideal = hash(mKeys[j]) & mask;
+                //ideal 不在 (hole, j] 这一段（环形）里时，可以挪到 hole
+                boolean between = hole <= j ? (ideal > hole && ideal <= j) : (ideal > hole || ideal <= j);
+                if (!between) {
+                    mKeys[hole] = mKeys[j];
+                    mValues[hole] = mValues[j];
+                    hole = j;
+                }
+            }
+            mKeys[hole] = EMPTY;
+            mSize--;
+        }
+
+        void clear() {
+            Arrays.fill(mKeys, EMPTY);
+            mSize = 0;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        @VisibleForTesting
+        int capacity() {
+            return mKeys.length;
+        }
+
+        private void rehash(int capacity) {
+            int[] keys = mKeys;
+            int[] values = mValues;
+            allocate(capacity);
+            mSize = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != EMPTY) {
+                    put(keys[i], values[i]);
+                }
+            }
+        }
+
+        private void allocate(int capacity) {
+            mKeys = new int[capacity];
+            mValues = new int[capacity];
+            Arrays.fill(mKeys, EMPTY);
+        }
+
+        private static int tableSize(int expectedSize) {
+            int capacity = 2;
+            while (capacity < expectedSize * 2) {
+                capacity <<= 1;
+            }
+            return capacity;
+        }
+
+        @VisibleForTesting
+        static int hash(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.davi.architectureguide.db;
+
+import android.database.Cursor;
+
+import com.davi.architectureguide.db.dao.ProductDao;
+import com.davi.architectureguide.model.Product;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/***
+ * 全文搜索的查询改写与 BM25 排序
+ *
+ * matchinfo(productsFts, 'pcnalx') 返回的整数依次是：
+ * p：查询里短语的个数
+ * c：FTS 表的列数
+ * n：表中的总行数
+ * a：每一列的平均词数（c 个）
+ * l：当前行每一列的词数（c 个）
+ * x：每个短语在每一列上的 3 个值（当前行命中次数、所有行命中次数、命中的行数），共 3 * p * c 个
+ * */
+public class ProductSearchRanker {
+
+    private static final double K1 = 1.2;
+
+    private static final double B = 0.75;
+
+    //name 列的命中比 description 更重要
+    private static final double[] COLUMN_WEIGHTS = new double[]{2.0, 1.0};
+
+    private ProductSearchRanker() {
+    }
+
+    /**
+     * 把用户输入改写成 FTS 查询：每个词都做前缀匹配，多个词之间是 AND
+     * 例如 "mon chick" -> "mon* chick*"；没有可以搜索的词时返回 null
+     */
+    public static String toFtsQuery(CharSequence query) {
+        StringBuilder ftsQuery = new StringBuilder();
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i <= query.length(); i++) {
+            char c = i < query.length() ? query.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                token.append(c);
+            } else if (token.length() > 0) {
+                if (ftsQuery.length() > 0) {
+                    ftsQuery.append(' ');
+                }
+                ftsQuery.append(token).append('*');
+                token.setLength(0);
+            }
+        }
+        return ftsQuery.length() == 0 ? null : ftsQuery.toString();
+    }
+
+    /**
+     * FTS 查询里的词（去掉前缀匹配的 *），例如 "mon* chick*" -> ["mon", "chick"]
+     */
+    public static String[] tokens(String ftsQuery) {
+        String[] tokens = ftsQuery.split(" ");
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = tokens[i].substring(0, tokens[i].length() - 1);
+        }
+        return tokens;
+    }
+
+    /***
+     * query 是否是 base 的细化：query 的结果一定是 base 结果的子集
+     * 1）base 的每个词都是 query 对应位置上的词的前缀（"mon" -> "monk"）
+     * 2）query 可以多出新的词（多个词之间是 AND，只会更少）
+     * */
+    public static boolean isRefinementOf(String[] query, String[] base) {
+        if (base.length > query.length) {
+            return false;
+        }
+        for (int i = 0; i < base.length; i++) {
+            if (!query[i].startsWith(base[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 在内存中模拟 FTS 的前缀匹配：每个词都要是 name 或 description 中某个词的前缀（忽略大小写）
+     */
+    public static boolean matches(Product product, String[] tokens) {
+        for (String token : tokens) {
+            if (!hasWordWithPrefix(product.getName(), token)
+                    && !hasWordWithPrefix(product.getDescription(), token)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasWordWithPrefix(String text, String prefix) {
+        if (text == null) {
+            return false;
+        }
+        for (int i = 0; i + prefix.length() <= text.length(); i++) {
+            boolean wordStart = i == 0 || !Character.isLetterOrDigit(text.charAt(i - 1));
+            if (wordStart && Character.isLetterOrDigit(text.charAt(i))
+                    && text.regionMatches(true, i, prefix, 0, prefix.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 排序的结果：前 limit 个商品 id，以及一共有多少个匹配（判断结果是否被截断）
+     */
+    public static final class Ranking {
+
+        public final List<Integer> ids;
+
+        public final int matchCount;
+
+        Ranking(List<Integer> ids, int matchCount) {
+            this.ids = ids;
+            this.matchCount = matchCount;
+        }
+    }
+
+    /***
+     * 边读 Cursor 边按 BM25 排序，取分数最高的前 limit 个匹配
+     * 1）所有匹配都参与排序，不会因为先截断候选而漏掉分数更高的商品
+     * 2）只保留前 limit 个：小顶堆，堆顶是已入选里最差的一个，O(n log limit)；
+     * 每一行的 matchinfo 算完分数就丢弃，内存只和 limit 有关，和匹配数无关
+     * 3）分数相同时保持原来的顺序（按 id）
+     * 4）matches 需要有 id、matchInfo 两列（见 ProductDao#searchProductMatches），由调用方关闭
+     * */
+    public static Ranking rank(Cursor matches, int limit) {
+        int idColumn = matches.getColumnIndexOrThrow("id");
+        int matchInfoColumn = matches.getColumnIndexOrThrow("matchInfo");
+        TopK top = new TopK(Math.max(0, limit));
+        int position = 0;
+        while (matches.moveToNext()) {
+            top.offer(matches.getInt(idColumn), score(matches.getBlob(matchInfoColumn)), position++);
+        }
+        return new Ranking(top.drain(), position);
+    }
+
+    /**
+     * 执行全文搜索并排序，Cursor 读完就关闭
+     */
+    public static Ranking search(ProductDao dao, String ftsQuery, int limit) {
+        Cursor matches = dao.searchProductMatches(ftsQuery);
+        try {
+            return rank(matches, limit);
+        } finally {
+            matches.close();
+        }
+    }
+
+    /**
+     * 固定大小的小顶堆，三个数组按下标对应：商品 id、分数、在 Cursor 里的位置
+     */
+    private static final class TopK {
+
+        private final int[] mIds;
+
+        private final double[] mScores;
+
+        private final int[] mPositions;
+
+        private int mSize;
+
+        TopK(int capacity) {
+            mIds = new int[capacity];
+            mScores = new double[capacity];
+            mPositions = new int[capacity];
+        }
+
+        void offer(int id, double score, int position) {
+            if (mSize < mIds.length) {
+                set(mSize, id, score, position);
+                siftUp(mSize++);
+            } else if (mSize > 0 && better(score, position, mScores[0], mPositions[0])) {
+                set(0, id, score, position);
+                siftDown(0, mSize);
+            }
+        }
+
+        /**
+         * 按分数从高到低返回 id，之后堆不能再使用
+         */
+        List<Integer> drain() {
+            //每次取出最差的一个放到末尾
+            Integer[] ordered = new Integer[mSize];
+            for (int n = mSize; n > 0; n--) {
+                ordered[n - 1] = mIds[0];
+                swap(0, n - 1);
+                siftDown(0, n - 1);
+            }
+            mSize = 0;
+            return Arrays.asList(ordered);
+        }
+
+        /**
+         * a 是否排在 b 前面：分数更高，或者分数相同但原来的位置更靠前
+         */
+        private static boolean better(double scoreA, int positionA, double scoreB, int positionB) {
+            return scoreA > scoreB || (scoreA == scoreB && positionA < positionB);
+        }
+
+        private boolean better(int a, int b) {
+            return better(mScores[a], mPositions[a], mScores[b], mPositions[b]);
+        }
+
+        private void siftUp(int node) {
+            while (node > 0) {
+                int parent = (node - 1) >>> 1;
+                if (!better(parent, node)) {
+                    return;
+                }
+                swap(parent, node);
+                node = parent;
+            }
+        }
+
+        private void siftDown(int node, int size) {
+            while (true) {
+                int worst = node;
+                int left = 2 * node + 1;
+                int right = left + 1;
+                if (left < size && better(worst, left)) {
+                    worst = left;
+                }
+                if (right < size && better(worst, right)) {
+                    worst = right;
+                }
+                if (worst == node) {
+                    return;
+                }
+                swap(node, worst);
+                node = worst;
+            }
+        }
+
+        private void set(int i, int id, double score, int position) {
+            mIds[i] = id;
+            mScores[i] = score;
+            mPositions[i] = position;
+        }
+
+        private void swap(int i, int j) {
+            int id = mIds[i];
+            double score = mScores[i];
+            int position = mPositions[i];
+            set(i, mIds[j], mScores[j], mPositions[j]);
+            set(j, id, score, position);
+        }
+    }
+
+    static double score(byte[] matchInfo) {
+        if (matchInfo == null) {
+            return 0;
+        }
+        IntBuffer info = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phrases = info.get(0);
+        int columns = info.get(1);
+        double rows = info.get(2);
+        int avgLengthOffset = 3;
+        int lengthOffset = avgLengthOffset + columns;
+        int hitsOffset = lengthOffset + columns;
+
+        double score = 0;
+        for (int phrase = 0; phrase < phrases; phrase++) {
+            for (int column = 0; column < columns; column++) {
+                int x = hitsOffset + 3 * (column + phrase * columns);
+                double hits = info.get(x);
+                if (hits == 0) {
+                    continue;
+                }
+                double docsWithHits = info.get(x + 2);
+                double avgLength = Math.max(1, info.get(avgLengthOffset + column));
+                double length = info.get(lengthOffset + column);
+
+                //IDF 可能为负（很常见的词），下限取一个很小的正数，保证命中总比不命中分数高
+                double idf = Math.max(1e-6,
+                        Math.log((rows - docsWithHits + 0.5) / (docsWithHits + 0.5)));
+                double tf = hits * (K1 + 1) / (hits + K1 * (1 - B + B * length / avgLength));
+                double weight = column < COLUMN_WEIGHTS.length ? COLUMN_WEIGHTS[column] : 1.0;
+                score += weight * idf * tf;
+            }
+        }
+        return score;
+    }
+}
@@ -0,0 +1,309 @@
+package com.davi.architectureguide.db;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+import com.davi.architectureguide.LatencyHistogram;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.regex.Pattern;
+
+import androidx.annotation.NonNull;
+import androidx.room.InvalidationTracker;
+import androidx.sqlite.db.SupportSQLiteStatement;
+
+/***
+ * DAO 查询和写入的耗时统计
+ * 1）Room 生成的 DAO 代码都通过 RoomDatabase#query 执行查询，AppDatabase 覆盖它，把返回的 Cursor 包一层；
+ * Android 的 Cursor 是在第一次读取时才真正执行，所以耗时从 query() 算到 close()，包含执行和读取所有行，
+ * 也就是 DAO 方法本身的耗时
+ * 2）写入（@Insert、@Update、@Delete 以及写入的 @Query）不返回 Cursor，Room 通过 RoomDatabase#compileStatement
+ * 编译成 SupportSQLiteStatement 并缓存复用；AppDatabase 同样覆盖它，每次 execute 记录耗时，行数是影响的行数
+ * 3）按 SQL 语句分组，每条语句一个耗时直方图，并记录返回或影响的行数；IN (?, ?, ...) 的参数个数不同也算同一条
+ * 4）同时统计每张表被 InvalidationTracker 通知失效的次数
+ * 5）关闭时（{@link #setEnabled}）不包装 Cursor；编译好的语句会被缓存，所以总是包装，执行时多一次 volatile 读取
+ * 6）不经过 RoomDatabase 的 SQL 不在统计里：迁移、触发器维护、BulkImporter 的批量写入（它们有自己的耗时记录）
+ * */
+public class QueryMetrics {
+
+    private static QueryMetrics sInstance;
+
+    private static final Pattern BIND_LIST = Pattern.compile("\\?(\\s*,\\s*\\?)+");
+
+    //最多统计多少条不同的语句，防止拼接出来的 SQL 让 map 无限增长
+    private static final int MAX_STATEMENTS = 256;
+
+    private static final String OTHER_STATEMENTS = "<other>";
+
+    private volatile boolean mEnabled;
+
+    private final Map<String, StatementStats> mStatements = new TreeMap<>();
+
+    private final Map<String, Long> mInvalidations = new TreeMap<>();
+
+    private final InvalidationTracker.Observer mObserver = new InvalidationTracker.Observer(
+            "products", "comments", "product_comment_stats", "change_log") {
+        @Override
+        public void onInvalidated(@NonNull Set<String> tables) {
+            synchronized (mInvalidations) {
+                for (String table : tables) {
+                    Long count = mInvalidations.get(table);
+                    mInvalidations.put(table, count == null ? 1 : count + 1);
+                }
+            }
+        }
+    };
+
+    private QueryMetrics() {
+    }
+
+    public static QueryMetrics getInstance() {
+        if (sInstance == null) {
+            synchronized (QueryMetrics.class) {
+                if (sInstance == null) {
+                    sInstance = new QueryMetrics();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * 开始统计这个数据库的失效次数；addObserver 需要访问数据库，放到 executor 上执行
+     */
+    public void observeInvalidations(final AppDatabase database, Executor executor) {
+        executor.execute(() -> database.getInvalidationTracker().addObserver(mObserver));
+    }
+
+    /**
+     * 包装 query() 返回的 Cursor，关闭时记录耗时和行数
+     */
+    Cursor wrap(Cursor cursor, String sql, long startNanos) {
+        return new MeteredCursor(cursor, normalize(sql), startNanos);
+    }
+
+    /**
+     * 包装 compileStatement() 返回的语句，打开统计时每次执行记录耗时和影响的行数
+     */
+    SupportSQLiteStatement wrap(SupportSQLiteStatement statement, String sql) {
+        return new MeteredStatement(statement, normalize(sql));
+    }
+
+    public void reset() {
+        synchronized (mStatements) {
+            mStatements.clear();
+        }
+        synchronized (mInvalidations) {
+            mInvalidations.clear();
+        }
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject statements = new JSONObject();
+        synchronized (mStatements) {
+            for (Map.Entry<String, StatementStats> entry : mStatements.entrySet()) {
+                statements.put(entry.getKey(), entry.getValue().toJson());
+            }
+        }
+        JSONObject invalidations = new JSONObject();
+        synchronized (mInvalidations) {
+            for (Map.Entry<String, Long> entry : mInvalidations.entrySet()) {
+                invalidations.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return new JSONObject()
+                .put("enabled", mEnabled)
+                .put("statements", statements)
+                .put("invalidations", invalidations);
+    }
+
+    private void record(String sql, long nanos, int rows) {
+        StatementStats stats;
+        synchronized (mStatements) {
+            stats = mStatements.get(sql);
+            if (stats == null) {
+                String key = mStatements.size() < MAX_STATEMENTS ? sql : OTHER_STATEMENTS;
+                stats = mStatements.get(key);
+                if (stats == null) {
+                    stats = new StatementStats();
+                    mStatements.put(key, stats);
+                }
+            }
+        }
+        stats.record(nanos, rows);
+    }
+
+    private static String normalize(String sql) {
+        return BIND_LIST.matcher(sql.trim()).replaceAll("?, ...");
+    }
+
+    private static class StatementStats {
+
+        private final LatencyHistogram mLatency = new LatencyHistogram();
+
+        private long mRows;
+
+        private int mMaxRows;
+
+        void record(long nanos, int rows) {
+            mLatency.record(nanos);
+            synchronized (this) {
+                mRows += rows;
+                mMaxRows = Math.max(mMaxRows, rows);
+            }
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = mLatency.toJson();
+            synchronized (this) {
+                long count = mLatency.getCount();
+                return json.put("rows_total", mRows)
+                        .put("rows_mean", count == 0 ? 0 : (double) mRows / count)
+                        .put("rows_max", mMaxRows);
+            }
+        }
+    }
+
+    private class MeteredStatement implements SupportSQLiteStatement {
+
+        private final SupportSQLiteStatement mDelegate;
+
+        private final String mSql;
+
+        MeteredStatement(SupportSQLiteStatement delegate, String sql) {
+            mDelegate = delegate;
+            mSql = sql;
+        }
+
+        @Override
+        public void execute() {
+            if (!mEnabled) {
+                mDelegate.execute();
+                return;
+            }
+            long start = System.nanoTime();
+            mDelegate.execute();
+            record(mSql, System.nanoTime() - start, 0);
+        }
+
+        @Override
+        public int executeUpdateDelete() {
+            if (!mEnabled) {
+                return mDelegate.executeUpdateDelete();
+            }
+            long start = System.nanoTime();
+            int rows = mDelegate.executeUpdateDelete();
+            record(mSql, System.nanoTime() - start, rows);
+            return rows;
+        }
+
+        @Override
+        public long executeInsert() {
+            if (!mEnabled) {
+                return mDelegate.executeInsert();
+            }
+            long start = System.nanoTime();
+            long rowId = mDelegate.executeInsert();
+            //IGNORE 冲突时返回 -1，没有插入
+            record(mSql, System.nanoTime() - start, rowId == -1 ? 0 : 1);
+            return rowId;
+        }
+
+        @Override
+        public long simpleQueryForLong() {
+            if (!mEnabled) {
+                return mDelegate.simpleQueryForLong();
+            }
+            long start = System.nanoTime();
+            long value = mDelegate.simpleQueryForLong();
+            record(mSql, System.nanoTime() - start, 1);
+            return value;
+        }
+
+        @Override
+        public String simpleQueryForString() {
+            if (!mEnabled) {
+                return mDelegate.simpleQueryForString();
+            }
+            long start = System.nanoTime();
+            String value = mDelegate.simpleQueryForString();
+            record(mSql, System.nanoTime() - start, 1);
+            return value;
+        }
+
+        @Override
+        public void bindNull(int index) {
+            mDelegate.bindNull(index);
+        }
+
+        @Override
+        public void bindLong(int index, long value) {
+            mDelegate.bindLong(index, value);
+        }
+
+        @Override
+        public void bindDouble(int index, double value) {
+            mDelegate.bindDouble(index, value);
+        }
+
+        @Override
+        public void bindString(int index, String value) {
+            mDelegate.bindString(index, value);
+        }
+
+        @Override
+        public void bindBlob(int index, byte[] value) {
+            mDelegate.bindBlob(index, value);
+        }
+
+        @Override
+        public void clearBindings() {
+            mDelegate.clearBindings();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mDelegate.close();
+        }
+    }
+
+    private class MeteredCursor extends CursorWrapper {
+
+        private final String mSql;
+
+        private final long mStartNanos;
+
+        private boolean mRecorded;
+
+        MeteredCursor(Cursor cursor, String sql, long startNanos) {
+            super(cursor);
+            mSql = sql;
+            mStartNanos = startNanos;
+        }
+
+        @Override
+        public void close() {
+            if (!mRecorded && !isClosed()) {
+                mRecorded = true;
+                //DAO 已经读完了所有行，getCount 不会再触发查询
+                record(mSql, System.nanoTime() - mStartNanos, getCount());
+            }
+            super.close();
+        }
+    }
+}
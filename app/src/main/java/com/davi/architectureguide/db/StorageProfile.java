@@ -0,0 +1,173 @@
+package com.davi.architectureguide.db;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+/***
+ * 数据库存储参数，打开数据库时应用（见 {@link #apply}）
+ * 1）wal：预写日志，读和写可以并发；内存数据库不支持，会被忽略
+ * 2）checkpoint：AUTO 由 SQLite 在提交时按 autoCheckpointPages 自动检查点，检查点的耗时算在那次写入上；
+ * MANUAL 由 {@link CheckpointScheduler} 在后台、避开读高峰执行，自动检查点的阈值放大到 safetyNetCheckpointPages，
+ * 只在后台检查点跟不上时兜底，不关闭（设为 0 时 WAL 没有上限）
+ * 3）cacheSizeKib：页缓存大小；mmapSizeBytes：内存映射读取的上限，0 表示关闭，
+ * 有些设备的 SQLite 编译时禁用了 mmap，这时设置不生效
+ * 4）synchronous 是平时的同步级别，importSynchronous 是批量导入期间的级别，默认都是 NORMAL（Android 在 WAL 模式下的默认值）：
+ * WAL 模式下 NORMAL 在断电时可能丢失最后几次提交，但不会损坏数据库，每次提交也不需要额外的 fsync；
+ * 需要每次提交都落盘时用 synchronous(FULL, NORMAL)
+ * 5）cache_size、mmap_size 这些 PRAGMA 只对当前连接有效，WAL 模式下 Android 的读连接池不会应用它们，
+ * 主要受益的是写入连接（导入、迁移、检查点）
+ * 6）journalSizeLimitBytes：检查点把 WAL 重置之后，文件截断到这个大小以内，导入撑大的 WAL 不会一直占着磁盘
+ * */
+public class StorageProfile {
+
+    private static final String TAG = "StorageProfile";
+
+    public enum Checkpoint {
+        AUTO,
+        MANUAL
+    }
+
+    public enum Synchronous {
+        OFF,
+        NORMAL,
+        FULL
+    }
+
+    boolean wal = true;
+
+    Checkpoint checkpoint = Checkpoint.MANUAL;
+
+    int autoCheckpointPages = 1000;
+
+    //MANUAL 时兜底的自动检查点阈值，页大小 4KiB 时约 40MiB
+    int safetyNetCheckpointPages = 10_000;
+
+    long journalSizeLimitBytes = 4L * 1024 * 1024;
+
+    //负数的 cache_size 表示 KiB
+    int cacheSizeKib = 4 * 1024;
+
+    long mmapSizeBytes = 32L * 1024 * 1024;
+
+    Synchronous synchronous = Synchronous.NORMAL;
+
+    Synchronous importSynchronous = Synchronous.NORMAL;
+
+    //手动检查点的间隔
+    long checkpointIntervalMillis = 30_000;
+
+    //一个间隔内完成的读任务超过这个数算作读高峰，推迟检查点
+    int readBurstTasks = 50;
+
+    //连续推迟这么多次之后不再推迟，避免 WAL 文件一直增长
+    int maxDeferredCheckpoints = 4;
+
+    public StorageProfile wal(boolean wal) {
+        this.wal = wal;
+        return this;
+    }
+
+    /**
+     * 自动检查点，pages 是 WAL 达到多少页时触发
+     */
+    public StorageProfile autoCheckpoint(int pages) {
+        this.checkpoint = Checkpoint.AUTO;
+        this.autoCheckpointPages = checkPositive(pages, "autoCheckpointPages");
+        return this;
+    }
+
+    /**
+     * 手动检查点：每 intervalMillis 检查一次，读高峰时推迟，最多连续推迟 maxDeferred 次；
+     * WAL 超过 safetyNetCheckpointPages 页时仍然会自动检查点
+     */
+    public StorageProfile manualCheckpoint(long intervalMillis, int readBurstTasks, int maxDeferred) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("intervalMillis must be positive: " + intervalMillis);
+        }
+        this.checkpoint = Checkpoint.MANUAL;
+        this.checkpointIntervalMillis = intervalMillis;
+        this.readBurstTasks = checkPositive(readBurstTasks, "readBurstTasks");
+        this.maxDeferredCheckpoints = Math.max(0, maxDeferred);
+        return this;
+    }
+
+    public StorageProfile safetyNetCheckpointPages(int pages) {
+        this.safetyNetCheckpointPages = checkPositive(pages, "safetyNetCheckpointPages");
+        return this;
+    }
+
+    public StorageProfile journalSizeLimitBytes(long journalSizeLimitBytes) {
+        this.journalSizeLimitBytes = Math.max(0, journalSizeLimitBytes);
+        return this;
+    }
+
+    public StorageProfile cacheSizeKib(int cacheSizeKib) {
+        this.cacheSizeKib = checkPositive(cacheSizeKib, "cacheSizeKib");
+        return this;
+    }
+
+    public StorageProfile mmapSizeBytes(long mmapSizeBytes) {
+        this.mmapSizeBytes = Math.max(0, mmapSizeBytes);
+        return this;
+    }
+
+    public StorageProfile synchronous(@NonNull Synchronous synchronous, @NonNull Synchronous importSynchronous) {
+        this.synchronous = synchronous;
+        this.importSynchronous = importSynchronous;
+        return this;
+    }
+
+    public boolean isWal() {
+        return wal;
+    }
+
+    public boolean isManualCheckpoint() {
+        return wal && checkpoint == Checkpoint.MANUAL;
+    }
+
+    /**
+     * 在 RoomDatabase.Callback#onOpen 里调用，应用到写入连接上
+     */
+    void apply(SupportSQLiteDatabase db) {
+        db.execSQL("PRAGMA cache_size = -" + cacheSizeKib);
+        db.execSQL("PRAGMA synchronous = " + synchronous.name());
+        //这几个 PRAGMA 会返回设置之后的值，execSQL 不能执行有结果的语句
+        long mmapSize = pragma(db, "PRAGMA mmap_size = " + mmapSizeBytes);
+        long journalSizeLimit = pragma(db, "PRAGMA journal_size_limit = " + journalSizeLimitBytes);
+        if (db.isWriteAheadLoggingEnabled()) {
+            pragma(db, "PRAGMA wal_autocheckpoint = "
+                    + (isManualCheckpoint() ? safetyNetCheckpointPages : autoCheckpointPages));
+        }
+        Log.i(TAG, "wal=" + db.isWriteAheadLoggingEnabled() + ", checkpoint=" + checkpoint
+                + ", cacheSizeKib=" + cacheSizeKib + ", mmapSize=" + mmapSize + ", journalSizeLimit=" + journalSizeLimit
+                + ", synchronous=" + synchronous);
+    }
+
+    /**
+     * 批量导入前后切换同步级别；SQLite 不允许在事务里修改，事务中调用时不做任何事
+     */
+    void applyImportSynchronous(SupportSQLiteDatabase db, boolean importing) {
+        if (!db.inTransaction()) {
+            db.execSQL("PRAGMA synchronous = " + (importing ? importSynchronous : synchronous).name());
+        }
+    }
+
+    private static long pragma(SupportSQLiteDatabase db, String sql) {
+        Cursor cursor = db.query(sql);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static int checkPositive(int value, String name) {
+        if (value <= 0) {
+            throw new IllegalArgumentException(name + " must be positive: " + value);
+        }
+        return value;
+    }
+}
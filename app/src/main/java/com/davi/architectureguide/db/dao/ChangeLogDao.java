@@ -0,0 +1,25 @@
+
+package com.davi.architectureguide.db.dao;
+
+
+import com.davi.architectureguide.db.entity.ChangeLogEntity;
+
+import java.util.List;
+
+import androidx.room.Dao;
+import androidx.room.Query;
+
+@Dao
+public interface ChangeLogDao {
+    @Query("SELECT * FROM change_log WHERE seq > :afterSeq ORDER BY seq")
+    List<ChangeLogEntity> loadChangesSince(long afterSeq);
+
+    @Query("SELECT IFNULL(MAX(seq), 0) FROM change_log")
+    long loadLatestSeq();
+
+    /**
+     * 已经被处理过的变更可以删掉，避免日志表无限增长
+     */
+    @Query("DELETE FROM change_log WHERE seq <= :seq")
+    void deleteChangesUpTo(long seq);
+}
@@ -4,22 +4,78 @@ package com.davi.architectureguide.db.dao;
 
 import com.davi.architectureguide.db.entity.CommentEntity;
 
+import java.util.ArrayList;
 import java.util.List;
 
-import androidx.lifecycle.LiveData;
 import androidx.room.Dao;
 import androidx.room.Insert;
 import androidx.room.OnConflictStrategy;
 import androidx.room.Query;
+import androidx.room.Transaction;
+import androidx.room.Update;
 
 @Dao
 public interface CommentDao {
-    @Query("SELECT * FROM comments where productId = :productId")
-    LiveData<List<CommentEntity>> loadComments(int productId);
+    /***
+     * 评论分页，按发表时间倒序（最新的在前），键集分页的位置是 (postedAt, id)：
+     * 1）走 (productId, postedAt) 联合索引，索引里每一项还带着 rowid（也就是 id），
+     * 排序 postedAt DESC, id DESC 直接按索引倒序扫描，不需要额外排序
+     * 2）不支持行值比较 (postedAt, id) < (?, ?)（需要 SQLite 3.15），
+     * 所以写成 postedAt <= ? 的范围条件加上同一时间内按 id 的过滤，范围条件仍然可以用索引定位
+     * 3）代价只和页大小有关，和翻到第几页无关；postedAt 是 NOT NULL 的（见 MIGRATION_5_6），范围条件不会漏掉行
+     * */
+    @Query("SELECT * FROM comments WHERE productId = :productId "
+        + "ORDER BY postedAt DESC, id DESC LIMIT :limit")
+    List<CommentEntity> loadLatestComments(int productId, int limit);
 
-    @Query("SELECT * FROM comments where productId = :productId")
-    List<CommentEntity> loadCommentsSync(int productId);
+    /**
+     * 比 (postedAt, id) 更早的一页，按时间倒序
+     */
+    @Query("SELECT * FROM comments WHERE productId = :productId AND postedAt <= :postedAt "
+        + "AND (postedAt < :postedAt OR id < :id) "
+        + "ORDER BY postedAt DESC, id DESC LIMIT :limit")
+    List<CommentEntity> loadCommentsBefore(int productId, long postedAt, int id, int limit);
 
-    @Insert(onConflict = OnConflictStrategy.REPLACE)
-    void insertAll(List<CommentEntity> comments);
+    /**
+     * 比 (postedAt, id) 更新的一页，按时间正序，调用方需要自己反转
+     */
+    @Query("SELECT * FROM comments WHERE productId = :productId AND postedAt >= :postedAt "
+        + "AND (postedAt > :postedAt OR id > :id) "
+        + "ORDER BY postedAt ASC, id ASC LIMIT :limit")
+    List<CommentEntity> loadCommentsAfter(int productId, long postedAt, int id, int limit);
+
+    /**
+     * 增量刷新用：只读取发生变化的那几行
+     */
+    @Query("SELECT * FROM comments WHERE id IN (:commentIds)")
+    List<CommentEntity> loadCommentsByIds(List<Integer> commentIds);
+
+    /**
+     * 评论分页判断变化是否和这个商品有关：commentIds 里有几条属于 productId，按主键逐个查找
+     */
+    @Query("SELECT COUNT(*) FROM comments WHERE productId = :productId AND id IN (:commentIds)")
+    int countCommentsOfProduct(int productId, List<Integer> commentIds);
+
+    /**
+     * UPSERT：已存在的评论原地更新，不使用 REPLACE 的“先删除再插入”
+     */
+    @Transaction
+    default void insertAll(List<CommentEntity> comments) {
+        long[] rowIds = insertAllIgnoringConflicts(comments);
+        List<CommentEntity> existing = new ArrayList<>();
+        for (int i = 0; i < rowIds.length; i++) {
+            if (rowIds[i] == -1) {
+                existing.add(comments.get(i));
+            }
+        }
+        if (!existing.isEmpty()) {
+            updateAll(existing);
+        }
+    }
+
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    long[] insertAllIgnoringConflicts(List<CommentEntity> comments);
+
+    @Update
+    void updateAll(List<CommentEntity> comments);
 }
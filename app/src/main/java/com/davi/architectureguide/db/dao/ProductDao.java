@@ -1,24 +1,126 @@
 
 package com.davi.architectureguide.db.dao;
 
+import android.database.Cursor;
 
 import com.davi.architectureguide.db.entity.ProductEntity;
+import com.davi.architectureguide.db.entity.ProductSummary;
+import com.davi.architectureguide.db.entity.ProductWithCommentStats;
 
+import java.util.ArrayList;
 import java.util.List;
 
+import androidx.annotation.Nullable;
 import androidx.lifecycle.LiveData;
 import androidx.room.Dao;
 import androidx.room.Insert;
 import androidx.room.OnConflictStrategy;
 import androidx.room.Query;
+import androidx.room.Transaction;
+import androidx.room.Update;
 
 @Dao
 public interface ProductDao {
+
+    //列表投影 ProductSummary 的列
+    String SUMMARY_COLUMNS = "products.id, products.name, products.price, "
+        + "substr(products.description, 1, " + ProductSummary.DESCRIPTION_LENGTH + ") AS description";
+
     @Query("SELECT * FROM products")
     LiveData<List<ProductEntity>> loadAllProducts();
 
-    @Insert(onConflict = OnConflictStrategy.REPLACE)
-    void insertAll(List<ProductEntity> products);
+    /**
+     * 键集分页（keyset pagination）：按主键 id 顺序取 afterId 之后的一页，
+     * 走主键索引定位，代价只和页大小有关，和偏移量无关（不同于 LIMIT/OFFSET）
+     */
+    @Query("SELECT * FROM products WHERE id > :afterId ORDER BY id ASC LIMIT :limit")
+    List<ProductEntity> loadProductsAfter(int afterId, int limit);
+
+    /**
+     * 向前翻页：取 beforeId 之前的一页，结果按 id 倒序，调用方需要自己反转
+     */
+    @Query("SELECT * FROM products WHERE id < :beforeId ORDER BY id DESC LIMIT :limit")
+    List<ProductEntity> loadProductsBefore(int beforeId, int limit);
+
+    /***
+     * 商品列表：一次查询同时带出每个商品的评论数和最新评论时间
+     * 1）product_comment_stats 按 productId 主键 LEFT JOIN，每行只多一次主键查找，不需要读取评论
+     * 2）分页方式和 {@link #loadProductsAfter}、{@link #loadProductsBefore} 相同
+     * 3）商品只取精简投影 {@link ProductSummary}，description 在 SQL 里截短
+     * */
+    @Query("SELECT " + SUMMARY_COLUMNS + ", IFNULL(stats.commentCount, 0) AS commentCount, "
+        + "stats.lastPostedAt AS lastCommentAt FROM products "
+        + "LEFT JOIN product_comment_stats AS stats ON stats.productId = products.id "
+        + "WHERE products.id > :afterId ORDER BY products.id ASC LIMIT :limit")
+    List<ProductWithCommentStats> loadProductsWithCommentStatsAfter(int afterId, int limit);
+
+    @Query("SELECT " + SUMMARY_COLUMNS + ", IFNULL(stats.commentCount, 0) AS commentCount, "
+        + "stats.lastPostedAt AS lastCommentAt FROM products "
+        + "LEFT JOIN product_comment_stats AS stats ON stats.productId = products.id "
+        + "WHERE products.id < :beforeId ORDER BY products.id DESC LIMIT :limit")
+    List<ProductWithCommentStats> loadProductsWithCommentStatsBefore(int beforeId, int limit);
+
+    /***
+     * 按价格过滤、排序的商品列表，键集分页的 key 是 (price, name, id)
+     * 1）正好是 (price, name) 索引的顺序（索引项末尾带 rowid），ORDER BY 沿索引走，不需要临时 B 树排序
+     * 2）price 的下界（上界）取区间边界和 key 中较紧的一个，由调用方算好，SQLite 只用它定位索引起点；
+     * 括号里的条件只在价格等于 key 的那几行上过滤
+     * 3）不用行值比较 (price, name, id) > (?, ?, ?)，它要求 SQLite 3.15
+     * 4）第一页传 afterPrice = minPrice - 1，name、id 条件不起作用
+     * 5）name 可以为 NULL，SQLite 把 NULL 排在最前面：用 IS 比较相等，
+     * key 的 name 为 NULL 时同一价格下所有非 NULL 的名称都在它之后
+     * */
+    @Query("SELECT " + SUMMARY_COLUMNS + ", IFNULL(stats.commentCount, 0) AS commentCount, "
+        + "stats.lastPostedAt AS lastCommentAt FROM products "
+        + "LEFT JOIN product_comment_stats AS stats ON stats.productId = products.id "
+        + "WHERE products.price >= :lowerPrice AND products.price <= :maxPrice "
+        + "AND (products.price > :afterPrice OR products.name > :afterName "
+        + "OR (products.name IS :afterName AND products.id > :afterId) "
+        + "OR (:afterName IS NULL AND products.name IS NOT NULL)) "
+        + "ORDER BY products.price ASC, products.name ASC, products.id ASC LIMIT :limit")
+    List<ProductWithCommentStats> loadProductsWithCommentStatsByPriceAfter(long lowerPrice, int maxPrice,
+                                                                           long afterPrice, @Nullable String afterName,
+                                                                           int afterId, int limit);
+
+    /**
+     * 和 {@link #loadProductsWithCommentStatsByPriceAfter} 方向相反，结果按 (price, name, id) 倒序；
+     * 第一页传 beforePrice = maxPrice + 1；倒序时 NULL 的名称在同一价格的最后面
+     */
+    @Query("SELECT " + SUMMARY_COLUMNS + ", IFNULL(stats.commentCount, 0) AS commentCount, "
+        + "stats.lastPostedAt AS lastCommentAt FROM products "
+        + "LEFT JOIN product_comment_stats AS stats ON stats.productId = products.id "
+        + "WHERE products.price <= :upperPrice AND products.price >= :minPrice "
+        + "AND (products.price < :beforePrice OR products.name < :beforeName "
+        + "OR (products.name IS :beforeName AND products.id < :beforeId) "
+        + "OR (:beforeName IS NOT NULL AND products.name IS NULL)) "
+        + "ORDER BY products.price DESC, products.name DESC, products.id DESC LIMIT :limit")
+    List<ProductWithCommentStats> loadProductsWithCommentStatsByPriceBefore(long upperPrice, int minPrice,
+                                                                            long beforePrice, @Nullable String beforeName,
+                                                                            int beforeId, int limit);
+
+    /**
+     * UPSERT：已存在的商品原地更新。
+     * 不使用 REPLACE，REPLACE 会先删除旧行，外键 ON DELETE CASCADE 会把评论也删掉
+     */
+    @Transaction
+    default void insertAll(List<ProductEntity> products) {
+        long[] rowIds = insertAllIgnoringConflicts(products);
+        List<ProductEntity> existing = new ArrayList<>();
+        for (int i = 0; i < rowIds.length; i++) {
+            if (rowIds[i] == -1) {
+                existing.add(products.get(i));
+            }
+        }
+        if (!existing.isEmpty()) {
+            updateAll(existing);
+        }
+    }
+
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    long[] insertAllIgnoringConflicts(List<ProductEntity> products);
+
+    @Update
+    void updateAll(List<ProductEntity> products);
 
     @Query("select * from products where id = :productId")
     LiveData<ProductEntity> loadProduct(int productId);
@@ -26,7 +128,43 @@ public interface ProductDao {
     @Query("select * from products where id = :productId")
     ProductEntity loadProductSync(int productId);
 
-    @Query("SELECT products.* FROM products JOIN productsFts ON (products.id = productsFts.rowid) "
-        + "WHERE productsFts MATCH :query")
-    LiveData<List<ProductEntity>> searchAllProducts(String query);
+    @Query("SELECT * FROM products")
+    List<ProductEntity> loadAllProductsSync();
+
+    /**
+     * 增量刷新用：只读取发生变化的那几行
+     */
+    @Query("SELECT * FROM products WHERE id IN (:productIds)")
+    List<ProductEntity> loadProductsByIds(List<Integer> productIds);
+
+    /**
+     * 内存列式快照 {@link com.davi.architectureguide.db.ProductIndex} 用：只取 id、name、price 三列，
+     * 在 (name, price) 覆盖索引上就能读完，不需要回表；返回 Cursor 直接读进数组，不创建逐行对象
+     */
+    @Query("SELECT id, name, price FROM products")
+    Cursor loadIndexColumns();
+
+    @Query("SELECT id, name, price FROM products WHERE id IN (:productIds)")
+    Cursor loadIndexColumnsByIds(List<Integer> productIds);
+
+    /**
+     * 全文搜索的全部匹配，只取 rowid 和 matchInfo 两列；返回 Cursor，由
+     * {@link com.davi.architectureguide.db.ProductSearchRanker#rank} 边读边按 BM25 排序，只保留前几个，
+     * 不为每个匹配创建对象。调用方负责关闭
+     * matchinfo 格式 'pcnalx' 见 {@link com.davi.architectureguide.db.ProductSearchRanker}
+     */
+    @Query("SELECT rowid AS id, matchinfo(productsFts, 'pcnalx') AS matchInfo "
+        + "FROM productsFts WHERE productsFts MATCH :query")
+    Cursor searchProductMatches(String query);
+
+    /**
+     * 全文索引重建期间的降级搜索：不走 productsFts，直接在 products 上做 LIKE 匹配
+     */
+    @Query("SELECT * FROM products WHERE name LIKE :pattern ESCAPE '\\' "
+        + "OR description LIKE :pattern ESCAPE '\\' LIMIT :limit")
+    LiveData<List<ProductEntity>> searchAllProductsByLike(String pattern, int limit);
+
+    @Query("SELECT * FROM products WHERE name LIKE :pattern ESCAPE '\\' "
+        + "OR description LIKE :pattern ESCAPE '\\' LIMIT :limit")
+    List<ProductEntity> searchAllProductsByLikeSync(String pattern, int limit);
 }
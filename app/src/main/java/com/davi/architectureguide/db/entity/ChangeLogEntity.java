@@ -0,0 +1,71 @@
+
+package com.davi.architectureguide.db.entity;
+
+
+import androidx.room.Entity;
+import androidx.room.Ignore;
+import androidx.room.PrimaryKey;
+
+/***
+ * 变更日志
+ * 1）products、comments 表上的触发器在每次 INSERT/UPDATE/DELETE 之后写入一行
+ * 2）seq 自增，观察者只需要读取上次处理过的 seq 之后的变更，而不是重新查询整张表
+ * 3）批量导入期间触发器被暂停，结束时只写一行 RESET（rowId 为 0），表示整张表需要重新加载
+ * */
+@Entity(tableName = "change_log")
+public class ChangeLogEntity {
+
+    public static final String OP_INSERT = "INSERT";
+    public static final String OP_UPDATE = "UPDATE";
+    public static final String OP_DELETE = "DELETE";
+    public static final String OP_RESET = "RESET";
+
+    @PrimaryKey(autoGenerate = true)
+    private long seq;
+    private String tableName;
+    private int rowId;
+    private String op;
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public void setSeq(long seq) {
+        this.seq = seq;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public void setTableName(String tableName) {
+        this.tableName = tableName;
+    }
+
+    public int getRowId() {
+        return rowId;
+    }
+
+    public void setRowId(int rowId) {
+        this.rowId = rowId;
+    }
+
+    public String getOp() {
+        return op;
+    }
+
+    public void setOp(String op) {
+        this.op = op;
+    }
+
+    public ChangeLogEntity() {
+    }
+
+    @Ignore
+    public ChangeLogEntity(long seq, String tableName, int rowId, String op) {
+        this.seq = seq;
+        this.tableName = tableName;
+        this.rowId = rowId;
+        this.op = op;
+    }
+}
@@ -6,6 +6,7 @@ import com.davi.architectureguide.model.Comment;
 
 import java.util.Date;
 
+import androidx.annotation.NonNull;
 import androidx.room.Entity;
 import androidx.room.ForeignKey;
 import androidx.room.Ignore;
@@ -18,13 +19,16 @@ import androidx.room.PrimaryKey;
                         parentColumns = "id",
                         childColumns = "productId",
                         onDelete = ForeignKey.CASCADE)},
-        indices = {@Index(value = "productId")
+        //productId 在前，同时满足外键和按商品、发表时间排序的评论分页
+        indices = {@Index(value = {"productId", "postedAt"})
         })
 public class CommentEntity implements Comment {
     @PrimaryKey(autoGenerate = true)
     private int id;
     private int productId;
     private String text;
+    //分页按 (postedAt, id) 定位，不能为空
+    @NonNull
     private Date postedAt;
 
     @Override
@@ -54,12 +58,13 @@ public class CommentEntity implements Comment {
         this.text = text;
     }
 
+    @NonNull
     @Override
     public Date getPostedAt() {
         return postedAt;
     }
 
-    public void setPostedAt(Date postedAt) {
+    public void setPostedAt(@NonNull Date postedAt) {
         this.postedAt = postedAt;
     }
 
@@ -67,7 +72,7 @@ public class CommentEntity implements Comment {
     }
 
     @Ignore
-    public CommentEntity(int id, int productId, String text, Date postedAt) {
+    public CommentEntity(int id, int productId, String text, @NonNull Date postedAt) {
         this.id = id;
         this.productId = productId;
         this.text = text;
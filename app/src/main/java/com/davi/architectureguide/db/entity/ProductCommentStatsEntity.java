@@ -0,0 +1,57 @@
+package com.davi.architectureguide.db.entity;
+
+
+import java.util.Date;
+
+import androidx.room.Entity;
+import androidx.room.Ignore;
+import androidx.room.PrimaryKey;
+
+/***
+ * 每个商品的评论统计（汇总表）
+ * 1）由 comments 上的触发器增量维护，读取评论数不需要加载评论本身
+ * 2）没有评论的商品没有对应的行，查询时用 LEFT JOIN + IFNULL 补 0
+ * 3）和 comments 不一致时（例如绕过触发器的批量导入）用 AppDatabase.rebuildCommentStats() 重建
+ * */
+@Entity(tableName = "product_comment_stats")
+public class ProductCommentStatsEntity {
+
+    @PrimaryKey
+    private int productId;
+    private int commentCount;
+    private Date lastPostedAt;
+
+    public int getProductId() {
+        return productId;
+    }
+
+    public void setProductId(int productId) {
+        this.productId = productId;
+    }
+
+    public int getCommentCount() {
+        return commentCount;
+    }
+
+    public void setCommentCount(int commentCount) {
+        this.commentCount = commentCount;
+    }
+
+    public Date getLastPostedAt() {
+        return lastPostedAt;
+    }
+
+    public void setLastPostedAt(Date lastPostedAt) {
+        this.lastPostedAt = lastPostedAt;
+    }
+
+    public ProductCommentStatsEntity() {
+    }
+
+    @Ignore
+    public ProductCommentStatsEntity(int productId, int commentCount, Date lastPostedAt) {
+        this.productId = productId;
+        this.commentCount = commentCount;
+        this.lastPostedAt = lastPostedAt;
+    }
+}
@@ -6,9 +6,14 @@ import com.davi.architectureguide.model.Product;
 
 import androidx.room.Entity;
 import androidx.room.Ignore;
+import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
-@Entity(tableName = "products")
+//覆盖索引：按价格、按名称排序的列表只需要读索引（见 AppDatabase 的 MIGRATION_6_7）
+@Entity(tableName = "products",
+        indices = {@Index(value = {"price", "name"}),
+                @Index(value = {"name", "price"})
+        })
 public class ProductEntity implements Product {
     @PrimaryKey
     private int id;
@@ -4,8 +4,12 @@ package com.davi.architectureguide.db.entity;
 import androidx.room.Entity;
 import androidx.room.Fts4;
 
+/***
+ * prefix = {2, 3}：额外为 2、3 个字符的前缀建立索引，"mo*"、"mon*" 这样的前缀查询
+ * 直接命中前缀索引，不需要扫描所有以它开头的词
+ * */
 @Entity(tableName = "productsFts")
-@Fts4(contentEntity = ProductEntity.class)
+@Fts4(contentEntity = ProductEntity.class, prefix = {2, 3})
 public class ProductFtsEntity {
   private String name;
   private String description;
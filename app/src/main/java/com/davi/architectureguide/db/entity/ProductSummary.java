@@ -0,0 +1,59 @@
+package com.davi.architectureguide.db.entity;
+
+
+import com.davi.architectureguide.model.Product;
+
+/***
+ * 商品列表用的精简投影：只有列表上显示的 id、name、price 和截短的 description
+ * 1）description 在 SQL 里用 substr 截短，完整的长文本不会从 cursor 复制出来，每行占用的内存有上限
+ * 2）完整的 ProductEntity 只在详情页（ProductFragment）按 id 加载
+ * */
+public class ProductSummary implements Product {
+
+    //列表里 description 最多显示的字符数
+    public static final int DESCRIPTION_LENGTH = 120;
+
+    private int id;
+    private String name;
+    private String description;
+    private int price;
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * 截短之后的描述，最长 {@link #DESCRIPTION_LENGTH} 个字符
+     */
+    @Override
+    public String getDescription() {
+        return description;
+    }
+
+    public void setDescription(String description) {
+        this.description = description;
+    }
+
+    @Override
+    public int getPrice() {
+        return price;
+    }
+
+    public void setPrice(int price) {
+        this.price = price;
+    }
+}
@@ -0,0 +1,23 @@
+package com.davi.architectureguide.db.entity;
+
+
+import java.util.Date;
+
+import androidx.room.ColumnInfo;
+import androidx.room.Embedded;
+
+/***
+ * 商品列表的一行：商品的精简投影 + product_comment_stats 里的评论数和最新评论时间
+ * 没有评论时 commentCount 为 0，lastCommentAt 为 null
+ * */
+public class ProductWithCommentStats {
+
+    @Embedded
+    public ProductSummary product;
+
+    @ColumnInfo(name = "commentCount")
+    public int commentCount;
+
+    @ColumnInfo(name = "lastCommentAt")
+    public Date lastCommentAt;
+}
@@ -0,0 +1,148 @@
+package com.davi.architectureguide.db.paging
+
+import androidx.paging.PagingSource
+import androidx.paging.PagingState
+import com.davi.architectureguide.db.AppDatabase
+import com.davi.architectureguide.db.ChangeFeed
+import com.davi.architectureguide.db.entity.CommentEntity
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.withContext
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * 评论在列表中的位置（键集分页的续传标记）：发表时间相同时再按 id 区分
+ */
+data class CommentKey(val postedAt: Long, val id: Int) {
+    companion object {
+        fun of(comment: CommentEntity) = CommentKey(comment.postedAt.time, comment.id)
+    }
+}
+
+/**
+ * 一个商品的评论，按发表时间倒序分页
+ *
+ * 1）key 为 null 时从最新的评论开始；向后翻页取比 key 更早的评论，向前翻页取比 key 更新的评论
+ * 2）从中间位置刷新时包含 key 本身，列表不会跳动
+ * 3）通过 ChangeFeed 只关心和这个商品有关的变化：已经加载过的评论被修改、删除，
+ * 或者有评论新加入这个商品时才失效，其他商品的评论变化不会让列表重新加载
+ * 4）变更流的线程上只做内存里的判断；需要查询数据库的判断（新评论属于哪个商品）放到查询线程上，
+ * 不阻塞其他监听者的分发
+ */
+class CommentPagingSource(
+    private val database: AppDatabase,
+    private val productId: Int
+) : PagingSource<CommentKey, CommentEntity>(), ChangeFeed.Listener {
+
+    private val changeFeed = database.changeFeed
+
+    private val registered = AtomicBoolean(false)
+
+    //已经加载过的评论 id，在读线程上写入，在变更流的线程上读取
+    private val loadedIds: MutableSet<Int> = Collections.newSetFromMap(ConcurrentHashMap())
+
+    init {
+        registerInvalidatedCallback {
+            changeFeed.removeListener(TABLE_NAME, this)
+        }
+    }
+
+    override suspend fun load(params: LoadParams<CommentKey>): LoadResult<CommentKey, CommentEntity> =
+        withContext(database.queryExecutor.asCoroutineDispatcher()) {
+            //第一次加载之前登记并读取 seq，之后提交的变化一定会收到
+            val seq = if (registered.compareAndSet(false, true)) register() else null
+            try {
+                val result = load(params.key, params)
+                if (result is LoadResult.Page) {
+                    result.data.forEach { loadedIds.add(it.id) }
+                }
+                result
+            } catch (e: Exception) {
+                LoadResult.Error(e)
+            } finally {
+                seq?.let { changeFeed.startFrom(this@CommentPagingSource, it) }
+            }
+        }
+
+    private fun register(): Long {
+        changeFeed.addListener(TABLE_NAME, this)
+        //登记之前已经失效时 invalidated 回调已经执行过了，这里自己移除
+        if (invalid) {
+            changeFeed.removeListener(TABLE_NAME, this)
+        }
+        return changeFeed.loadLatestSeq()
+    }
+
+    override fun onChanged(seq: Long, changedIds: Set<Int>, deletedIds: Set<Int>) {
+        if (invalid) {
+            return
+        }
+        if (deletedIds.any { it in loadedIds } || changedIds.any { it in loadedIds }) {
+            invalidate()
+            return
+        }
+        if (changedIds.isEmpty()) {
+            return
+        }
+        //没有加载过的评论：只有属于这个商品的（新增或者从其他商品移过来）才需要重新加载
+        val ids = changedIds.toList()
+        database.queryExecutor.execute {
+            val dao = database.commentDao()
+            if (!invalid && ids.chunked(MAX_IDS_PER_QUERY).any { dao.countCommentsOfProduct(productId, it) > 0 }) {
+                invalidate()
+            }
+        }
+    }
+
+    override fun onReset() {
+        invalidate()
+    }
+
+    private fun load(key: CommentKey?, params: LoadParams<CommentKey>): LoadResult<CommentKey, CommentEntity> {
+        val dao = database.commentDao()
+        val loadSize = params.loadSize
+        return when (params) {
+            is LoadParams.Prepend -> {
+                val items = dao.loadCommentsAfter(productId, key!!.postedAt, key.id, loadSize).asReversed()
+                LoadResult.Page(
+                    data = items,
+                    prevKey = if (items.size < loadSize) null else CommentKey.of(items.first()),
+                    nextKey = null
+                )
+            }
+            is LoadParams.Append -> {
+                val items = dao.loadCommentsBefore(productId, key!!.postedAt, key.id, loadSize)
+                LoadResult.Page(
+                    data = items,
+                    prevKey = null,
+                    nextKey = if (items.size < loadSize) null else CommentKey.of(items.last())
+                )
+            }
+            is LoadParams.Refresh -> {
+                val items = if (key == null) {
+                    dao.loadLatestComments(productId, loadSize)
+                } else {
+                    // id + 1：包含 key 这一条
+                    dao.loadCommentsBefore(productId, key.postedAt, key.id + 1, loadSize)
+                }
+                LoadResult.Page(
+                    data = items,
+                    prevKey = if (key == null) null else items.firstOrNull()?.let { CommentKey.of(it) } ?: key,
+                    nextKey = if (items.size < loadSize) null else CommentKey.of(items.last())
+                )
+            }
+        }
+    }
+
+    override fun getRefreshKey(state: PagingState<CommentKey, CommentEntity>): CommentKey? {
+        return state.anchorPosition?.let { state.closestItemToPosition(it)?.let { CommentKey.of(it) } }
+    }
+
+    private companion object {
+        const val TABLE_NAME = "comments"
+
+        //SQLite 默认最多 999 个绑定参数
+        const val MAX_IDS_PER_QUERY = 500
+    }
+}
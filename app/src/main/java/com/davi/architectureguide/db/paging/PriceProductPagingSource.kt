@@ -0,0 +1,122 @@
+package com.davi.architectureguide.db.paging
+
+import androidx.paging.PagingSource
+import androidx.paging.PagingState
+import androidx.room.InvalidationTracker
+import com.davi.architectureguide.db.AppDatabase
+import com.davi.architectureguide.db.ProductFilter
+import com.davi.architectureguide.db.entity.ProductWithCommentStats
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.withContext
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * 商品在按价格排序的列表中的位置：价格相同时按名称、再按 id 区分，和 (price, name) 索引的顺序一致。
+ * name 保留 NULL，不能换成 ""：NULL 和 "" 在索引里是不同的位置
+ */
+data class PriceKey(val price: Int, val name: String?, val id: Int) {
+    companion object {
+        fun of(item: ProductWithCommentStats) =
+            PriceKey(item.product.price, item.product.name, item.product.id)
+    }
+}
+
+/**
+ * 按价格过滤、排序的商品分页
+ *
+ * 1）每一页都是 (price, name) 索引上的一段范围读取，排序 100 万个商品的代价和页大小有关，和总数无关
+ * 2）升序时向后翻页取 key 之后的行、向前翻页取 key 之前的行，降序时相反
+ * 3）从中间位置刷新时包含 key 本身
+ * 4）products 表或评论统计发生变化时让自己失效，和 [ProductPagingSource] 相同
+ */
+class PriceProductPagingSource(
+    private val database: AppDatabase,
+    private val filter: ProductFilter
+) : PagingSource<PriceKey, ProductWithCommentStats>() {
+
+    private val registered = AtomicBoolean(false)
+
+    private val descending = filter.sort == ProductFilter.Sort.PRICE_DESC
+
+    private val observer = object : InvalidationTracker.Observer("products", "product_comment_stats") {
+        override fun onInvalidated(tables: Set<String>) {
+            invalidate()
+        }
+    }
+
+    init {
+        registerInvalidatedCallback {
+            database.invalidationTracker.removeObserver(observer)
+        }
+    }
+
+    override suspend fun load(params: LoadParams<PriceKey>): LoadResult<PriceKey, ProductWithCommentStats> =
+        withContext(database.queryExecutor.asCoroutineDispatcher()) {
+            if (registered.compareAndSet(false, true)) {
+                database.invalidationTracker.addObserver(observer)
+            }
+            try {
+                load(params.key, params)
+            } catch (e: Exception) {
+                LoadResult.Error(e)
+            }
+        }
+
+    private fun load(key: PriceKey?, params: LoadParams<PriceKey>): LoadResult<PriceKey, ProductWithCommentStats> {
+        val loadSize = params.loadSize
+        return when (params) {
+            is LoadParams.Prepend -> {
+                val items = (if (descending) after(key!!, loadSize) else before(key!!, loadSize)).asReversed()
+                LoadResult.Page(
+                    data = items,
+                    prevKey = if (items.size < loadSize) null else PriceKey.of(items.first()),
+                    nextKey = null
+                )
+            }
+            is LoadParams.Append -> {
+                val items = if (descending) before(key!!, loadSize) else after(key!!, loadSize)
+                LoadResult.Page(
+                    data = items,
+                    prevKey = null,
+                    nextKey = if (items.size < loadSize) null else PriceKey.of(items.last())
+                )
+            }
+            is LoadParams.Refresh -> {
+                val items = when {
+                    key == null -> first(loadSize)
+                    // id ± 1：包含 key 这一行
+                    descending -> before(key.copy(id = key.id + 1), loadSize)
+                    else -> after(key.copy(id = key.id - 1), loadSize)
+                }
+                LoadResult.Page(
+                    data = items,
+                    prevKey = if (key == null) null else items.firstOrNull()?.let { PriceKey.of(it) } ?: key,
+                    nextKey = if (items.size < loadSize) null else PriceKey.of(items.last())
+                )
+            }
+        }
+    }
+
+    private fun first(limit: Int): List<ProductWithCommentStats> {
+        val dao = database.productDao()
+        return if (descending) {
+            dao.loadProductsWithCommentStatsByPriceBefore(
+                filter.maxPrice.toLong(), filter.minPrice, filter.maxPrice + 1L, "", 0, limit)
+        } else {
+            dao.loadProductsWithCommentStatsByPriceAfter(
+                filter.minPrice.toLong(), filter.maxPrice, filter.minPrice - 1L, "", 0, limit)
+        }
+    }
+
+    private fun after(key: PriceKey, limit: Int): List<ProductWithCommentStats> =
+        database.productDao().loadProductsWithCommentStatsByPriceAfter(
+            maxOf(filter.minPrice, key.price).toLong(), filter.maxPrice, key.price.toLong(), key.name, key.id, limit)
+
+    private fun before(key: PriceKey, limit: Int): List<ProductWithCommentStats> =
+        database.productDao().loadProductsWithCommentStatsByPriceBefore(
+            minOf(filter.maxPrice, key.price).toLong(), filter.minPrice, key.price.toLong(), key.name, key.id, limit)
+
+    override fun getRefreshKey(state: PagingState<PriceKey, ProductWithCommentStats>): PriceKey? {
+        return state.anchorPosition?.let { state.closestItemToPosition(it)?.let { PriceKey.of(it) } }
+    }
+}
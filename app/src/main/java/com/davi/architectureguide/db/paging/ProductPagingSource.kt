@@ -0,0 +1,86 @@
+package com.davi.architectureguide.db.paging
+
+import androidx.paging.PagingSource
+import androidx.paging.PagingState
+import androidx.room.InvalidationTracker
+import com.davi.architectureguide.StartupTracer
+import com.davi.architectureguide.db.AppDatabase
+import com.davi.architectureguide.db.entity.ProductWithCommentStats
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.withContext
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * 按主键 id 做键集分页的 PagingSource
+ *
+ * 1）key 是一页的边界 id：刷新时从 key（含）开始向后取，向后翻页取 id > key，向前翻页取 id < key
+ * 2）products 表或评论统计发生变化时通过 InvalidationTracker 让自己失效，Pager 会重新创建一个 PagingSource
+ * 3）内存里只保留 PagingConfig.maxSize 范围内的页，而不是整张表
+ * 4）每一行同时带出 product_comment_stats 里的评论数
+ */
+class ProductPagingSource(private val database: AppDatabase) : PagingSource<Int, ProductWithCommentStats>() {
+
+    private val registered = AtomicBoolean(false)
+
+    private val observer = object : InvalidationTracker.Observer("products", "product_comment_stats") {
+        override fun onInvalidated(tables: Set<String>) {
+            invalidate()
+        }
+    }
+
+    init {
+        registerInvalidatedCallback {
+            database.invalidationTracker.removeObserver(observer)
+        }
+    }
+
+    override suspend fun load(params: LoadParams<Int>): LoadResult<Int, ProductWithCommentStats> =
+        withContext(database.queryExecutor.asCoroutineDispatcher()) {
+            // addObserver 会同步触发器，需要访问数据库，所以放到查询线程上第一次加载时再注册
+            if (registered.compareAndSet(false, true)) {
+                database.invalidationTracker.addObserver(observer)
+            }
+            try {
+                load(params.key, params).also { StartupTracer.getInstance().mark("first_query") }
+            } catch (e: Exception) {
+                LoadResult.Error(e)
+            }
+        }
+
+    private fun load(key: Int?, params: LoadParams<Int>): LoadResult<Int, ProductWithCommentStats> {
+        val dao = database.productDao()
+        val loadSize = params.loadSize
+        return when (params) {
+            is LoadParams.Prepend -> {
+                val items = dao.loadProductsWithCommentStatsBefore(key!!, loadSize).asReversed()
+                LoadResult.Page(
+                    data = items,
+                    prevKey = if (items.size < loadSize) null else items.first().product.id,
+                    nextKey = null
+                )
+            }
+            is LoadParams.Append -> {
+                val items = dao.loadProductsWithCommentStatsAfter(key!!, loadSize)
+                LoadResult.Page(
+                    data = items,
+                    prevKey = null,
+                    nextKey = if (items.size < loadSize) null else items.last().product.id
+                )
+            }
+            is LoadParams.Refresh -> {
+                val items = dao.loadProductsWithCommentStatsAfter(if (key == null) Int.MIN_VALUE else key - 1, loadSize)
+                LoadResult.Page(
+                    data = items,
+                    // 从中间位置刷新时，前面可能还有数据，交给 Prepend 去判断
+                    prevKey = if (key == null) null else items.firstOrNull()?.product?.id ?: key,
+                    nextKey = if (items.size < loadSize) null else items.last().product.id
+                )
+            }
+        }
+    }
+
+    override fun getRefreshKey(state: PagingState<Int, ProductWithCommentStats>): Int? {
+        // 失效重建后从当前可见位置附近的那一行开始加载，避免列表跳回顶部
+        return state.anchorPosition?.let { state.closestItemToPosition(it)?.product?.id }
+    }
+}
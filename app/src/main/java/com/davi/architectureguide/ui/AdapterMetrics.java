@@ -0,0 +1,224 @@
+package com.davi.architectureguide.ui;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import com.davi.architectureguide.LatencyHistogram;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
+import androidx.annotation.NonNull;
+
+/***
+ * 列表适配器的耗时统计，用来判断掉帧是哪一类列表操作引起的
+ * 1）inflate：onCreateViewHolder 里加载布局、创建 binding；bind：onBindViewHolder 里设置数据和 executePendingBindings；
+ * diff：后台线程上的差异计算。每个适配器、每一类一个耗时直方图
+ * 2）帧：用 Choreographer 记录相邻两帧的间隔，超过 JANK_THRESHOLD_NANOS 算一次掉帧，
+ * 并把这一帧里各个适配器在主线程上的 inflate、bind 耗时记到它的掉帧耗时里
+ * 3）可以在运行时打开、关闭（{@link #setEnabled}），关闭时每次调用只多一次 volatile 读取
+ * 4）帧统计需要 Choreographer（API 16），更低的版本只统计适配器
+ * */
+public class AdapterMetrics {
+
+    //60Hz 下 1.5 帧
+    private static final long JANK_THRESHOLD_NANOS = 25_000_000L;
+
+    private static AdapterMetrics sInstance;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final Map<String, Stats> mStats = new TreeMap<>();
+
+    private final LatencyHistogram mFrameIntervals = new LatencyHistogram();
+
+    private volatile boolean mEnabled;
+
+    //以下只在主线程访问
+    private long mLastFrameNanos;
+
+    private long mJankFrames;
+
+    private Object mFrameCallback;
+
+    private AdapterMetrics() {
+    }
+
+    public static AdapterMetrics getInstance() {
+        if (sInstance == null) {
+            synchronized (AdapterMetrics.class) {
+                if (sInstance == null) {
+                    sInstance = new AdapterMetrics();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void setEnabled(final boolean enabled) {
+        mEnabled = enabled;
+        mMainHandler.post(() -> {
+            if (enabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                startFrames();
+            }
+        });
+    }
+
+    /**
+     * 开始计时，关闭时返回 0，之后的 endXxx 会直接忽略
+     */
+    public long begin() {
+        return mEnabled ? System.nanoTime() : 0;
+    }
+
+    public void endInflate(String adapter, long start) {
+        if (start != 0) {
+            Stats stats = stats(adapter);
+            stats.recordMainThread(stats.mInflate, System.nanoTime() - start);
+        }
+    }
+
+    public void endBind(String adapter, long start) {
+        if (start != 0) {
+            Stats stats = stats(adapter);
+            stats.recordMainThread(stats.mBind, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 包装差异计算用的执行器，每个任务的执行时间记为一次 diff
+     */
+    public Executor timed(final String adapter, final Executor delegate) {
+        return command -> delegate.execute(() -> {
+            long start = begin();
+            command.run();
+            if (start != 0) {
+                stats(adapter).mDiff.record(System.nanoTime() - start);
+            }
+        });
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject adapters = new JSONObject();
+        synchronized (mStats) {
+            for (Map.Entry<String, Stats> entry : mStats.entrySet()) {
+                adapters.put(entry.getKey(), entry.getValue().toJson());
+            }
+        }
+        long jankFrames;
+        synchronized (this) {
+            jankFrames = mJankFrames;
+        }
+        return new JSONObject()
+                .put("enabled", mEnabled)
+                .put("frame_intervals", mFrameIntervals.toJson())
+                .put("jank_frames", jankFrames)
+                .put("adapters", adapters);
+    }
+
+    private Stats stats(String adapter) {
+        synchronized (mStats) {
+            Stats stats = mStats.get(adapter);
+            if (stats == null) {
+                stats = new Stats();
+                mStats.put(adapter, stats);
+            }
+            return stats;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void startFrames() {
+        if (mFrameCallback != null) {
+            return;
+        }
+        mLastFrameNanos = 0;
+        Choreographer.FrameCallback callback = new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                if (!mEnabled) {
+                    mFrameCallback = null;
+                    return;
+                }
+                onFrame(frameTimeNanos);
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        };
+        mFrameCallback = callback;
+        Choreographer.getInstance().postFrameCallback(callback);
+    }
+
+    private void onFrame(long frameTimeNanos) {
+        boolean jank = false;
+        if (mLastFrameNanos != 0) {
+            long interval = frameTimeNanos - mLastFrameNanos;
+            mFrameIntervals.record(interval);
+            jank = interval > JANK_THRESHOLD_NANOS;
+            if (jank) {
+                synchronized (this) {
+                    mJankFrames++;
+                }
+            }
+        }
+        mLastFrameNanos = frameTimeNanos;
+        synchronized (mStats) {
+            for (Stats stats : mStats.values()) {
+                stats.onFrame(jank);
+            }
+        }
+    }
+
+    private static class Stats {
+
+        final LatencyHistogram mInflate = new LatencyHistogram();
+
+        final LatencyHistogram mBind = new LatencyHistogram();
+
+        final LatencyHistogram mDiff = new LatencyHistogram();
+
+        //上一帧以来主线程上的 inflate + bind 耗时
+        private long mFrameWorkNanos;
+
+        private long mJankWorkNanos;
+
+        private long mJankFrames;
+
+        void recordMainThread(LatencyHistogram histogram, long nanos) {
+            histogram.record(nanos);
+            synchronized (this) {
+                mFrameWorkNanos += nanos;
+            }
+        }
+
+        synchronized void onFrame(boolean jank) {
+            if (jank && mFrameWorkNanos > 0) {
+                mJankWorkNanos += mFrameWorkNanos;
+                mJankFrames++;
+            }
+            mFrameWorkNanos = 0;
+        }
+
+        @NonNull
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject()
+                    .put("inflate", mInflate.toJson())
+                    .put("bind", mBind.toJson())
+                    .put("diff", mDiff.toJson());
+            synchronized (this) {
+                return json.put("jank_frames", mJankFrames)
+                        .put("jank_work_ms", mJankWorkNanos / 1e6);
+            }
+        }
+    }
+}
@@ -9,53 +9,84 @@ import com.davi.architectureguide.R;
 import com.davi.architectureguide.databinding.CommentItemBinding;
 import com.davi.architectureguide.db.entity.CommentEntity;
 
+import java.util.concurrent.Executor;
+
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.core.util.ObjectsCompat;
 import androidx.databinding.DataBindingUtil;
-import androidx.recyclerview.widget.AsyncDifferConfig;
+import androidx.paging.PagingDataAdapter;
 import androidx.recyclerview.widget.DiffUtil;
-import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
+import kotlinx.coroutines.Dispatchers;
+import kotlinx.coroutines.ExecutorsKt;
+
+/***
+ * 评论列表适配器，数据由 Pager 按页加载（最新的评论在前），只持有保留在内存中的页
+ * 差异计算在 diffExecutor 上执行，inflate、bind、diff 的耗时计入 AdapterMetrics
+ * */
+public class CommentAdapter extends PagingDataAdapter<CommentEntity, CommentAdapter.CommentViewHolder> {
+
+    private static final String METRICS_NAME = "CommentAdapter";
+
+    private static final DiffUtil.ItemCallback<CommentEntity> DIFF_CALLBACK =
+            new DiffUtil.ItemCallback<CommentEntity>() {
+                @Override
+                public boolean areItemsTheSame(@NonNull CommentEntity old,
+                        @NonNull CommentEntity comment) {
+                    return old.getId() == comment.getId();
+                }
 
-public class CommentAdapter extends ListAdapter<CommentEntity, CommentAdapter.CommentViewHolder> {
+                @Override
+                public boolean areContentsTheSame(@NonNull CommentEntity old,
+                        @NonNull CommentEntity comment) {
+                    return old.getId() == comment.getId()
+                            && ObjectsCompat.equals(old.getPostedAt(), comment.getPostedAt())
+                            && old.getProductId() == comment.getProductId()
+                            && TextUtils.equals(old.getText(), comment.getText());
+                }
+            };
 
     @Nullable
     private final CommentClickCallback mCommentClickCallback;
 
-    CommentAdapter(@Nullable CommentClickCallback commentClickCallback) {
-        super(new AsyncDifferConfig.Builder<>(new DiffUtil.ItemCallback<CommentEntity>() {
-            @Override
-            public boolean areItemsTheSame(@NonNull CommentEntity old,
-                    @NonNull CommentEntity comment) {
-                return old.getId() == comment.getId();
-            }
-
-            @Override
-            public boolean areContentsTheSame(@NonNull CommentEntity old,
-                    @NonNull CommentEntity comment) {
-                return old.getId() == comment.getId()
-                        && old.getPostedAt().equals(comment.getPostedAt())
-                        && old.getProductId() == comment.getProductId()
-                        && TextUtils.equals(old.getText(), comment.getText());
-            }
-        }).build());
+    CommentAdapter(@Nullable CommentClickCallback commentClickCallback, @NonNull Executor diffExecutor) {
+        super(DIFF_CALLBACK, Dispatchers.getMain(),
+                ExecutorsKt.from(AdapterMetrics.getInstance().timed(METRICS_NAME, diffExecutor)));
         mCommentClickCallback = commentClickCallback;
     }
 
     @Override
     @NonNull
     public CommentViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
-        CommentItemBinding binding = DataBindingUtil
-                .inflate(LayoutInflater.from(parent.getContext()), R.layout.comment_item,
-                        parent, false);
-        binding.setCallback(mCommentClickCallback);
-        return new CommentViewHolder(binding);
+        long start = AdapterMetrics.getInstance().begin();
+        CommentViewHolder holder = CommentViewHolder.create(parent);
+        AdapterMetrics.getInstance().endInflate(METRICS_NAME, start);
+        return holder;
     }
 
     @Override
     public void onBindViewHolder(@NonNull CommentViewHolder holder, int position) {
-        holder.binding.setComment(getItem(position));
-        holder.binding.executePendingBindings();
+        long start = AdapterMetrics.getInstance().begin();
+        //关闭了占位符，这里正常不会为 null
+        CommentEntity comment = getItem(position);
+        if (comment != null) {
+            //ViewHolder 可能来自共享池，回调在这里设置
+            holder.binding.setCallback(mCommentClickCallback);
+            holder.binding.setComment(comment);
+            holder.binding.executePendingBindings();
+        }
+        AdapterMetrics.getInstance().endBind(METRICS_NAME, start);
+    }
+
+    @Override
+    public void onViewRecycled(@NonNull CommentViewHolder holder) {
+        holder.binding.setCallback(null);
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        return R.layout.comment_item;
     }
 
     static class CommentViewHolder extends RecyclerView.ViewHolder {
@@ -66,5 +97,12 @@ public class CommentAdapter extends ListAdapter<CommentEntity, CommentAdapter.Co
             super(binding.getRoot());
             this.binding = binding;
         }
+
+        static CommentViewHolder create(ViewGroup parent) {
+            CommentItemBinding binding = DataBindingUtil
+                    .inflate(LayoutInflater.from(parent.getContext()), R.layout.comment_item,
+                            parent, false);
+            return new CommentViewHolder(binding);
+        }
     }
 }
@@ -10,105 +10,177 @@ import com.davi.architectureguide.model.Product;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.databinding.DataBindingUtil;
+import androidx.recyclerview.widget.AdapterListUpdateCallback;
+import androidx.recyclerview.widget.AsyncDifferConfig;
+import androidx.recyclerview.widget.AsyncListDiffer;
 import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 public class ProductAdapter extends RecyclerView.Adapter<ProductAdapter.ProductViewHolder>{
 
-    List<? extends Product> mProductList;
+    //AdapterMetrics 里的名字
+    private static final String METRICS_NAME = "ProductAdapter";
+
+    /**
+     * 基础知识
+     * 1）DiffUtil是recyclerview support library v7 24.2.0版本中新增的类，
+     * 根据Google官方文档的介绍，DiffUtil的作用是比较两个数据列表并能计算出一系列将旧数据表转换成新数据表的操作
+     * 2）相比直接调用adapter.notifyDataSetChange()方法，它能在收到数据集后，提高UI更新的效率，而且你也不需要自己对新老数据集进行比较了。
+     * */
+    private static final DiffUtil.ItemCallback<Product> DIFF_CALLBACK = new DiffUtil.ItemCallback<Product>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull Product oldProduct, @NonNull Product newProduct) {
+            return oldProduct.getId() == newProduct.getId();
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull Product oldProduct, @NonNull Product newProduct) {
+            return newProduct.getId() == oldProduct.getId()
+                    && TextUtils.equals(newProduct.getDescription(), oldProduct.getDescription())
+                    && TextUtils.equals(newProduct.getName(), oldProduct.getName())
+                    && newProduct.getPrice() == oldProduct.getPrice();
+        }
+    };
+
+    /**
+     * 1）AsyncListDiffer 在后台线程计算差异，计算完成后回到主线程，
+     * 通过 AdapterListUpdateCallback 自动调用 notifyItemRangeInserted/Removed/Moved/Changed
+     * 2）如果计算过程中又提交了新列表，旧的计算结果会被丢弃
+     * */
+    private final AsyncListDiffer<Product> mDiffer;
+
+    //最近一次提交的列表（可能还在后台计算差异）
+    @Nullable
+    private List<? extends Product> mSubmittedList;
 
     private final ProductClickCallback mProductClickCallback;
 
-    public ProductAdapter(@Nullable ProductClickCallback clickCallback) {
+    public ProductAdapter(@Nullable ProductClickCallback clickCallback, @NonNull Executor diffExecutor) {
         mProductClickCallback = clickCallback;
+        mDiffer = new AsyncListDiffer<>(new AdapterListUpdateCallback(this),
+                new AsyncDifferConfig.Builder<>(DIFF_CALLBACK)
+                        .setBackgroundThreadExecutor(new LatestOnlyExecutor(
+                                AdapterMetrics.getInstance().timed(METRICS_NAME, diffExecutor)))
+                        .build());
         setHasStableIds(true);
     }
 
     public void setProductList(final List<? extends Product> productList) {
-        if (mProductList == null) {
-            //数据为空
-            mProductList = productList;
-            notifyItemRangeInserted(0, productList.size());
-        }else {
-            /**
-             * 基础知识
-             * 1）DiffUtil是recyclerview support library v7 24.2.0版本中新增的类，
-             * 根据Google官方文档的介绍，DiffUtil的作用是比较两个数据列表并能计算出一系列将旧数据表转换成新数据表的操作
-             * 2）相比直接调用adapter.notifyDataSetChange()方法，它能在收到数据集后，提高UI更新的效率，而且你也不需要自己对新老数据集进行比较了。
-             * */
-            //数据发生变化
-            DiffUtil.DiffResult result = DiffUtil.calculateDiff(new DiffUtil.Callback() {
-                @Override
-                public int getOldListSize() {
-                    return mProductList.size();
-                }
-
-                @Override
-                public int getNewListSize() {
-                    return productList.size();
-                }
-
-                @Override
-                public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
-                    return mProductList.get(oldItemPosition).getId() ==
-                            productList.get(newItemPosition).getId();
-                }
-
-                @Override
-                public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
-                    Product newProduct = productList.get(newItemPosition);
-                    Product oldProduct = mProductList.get(oldItemPosition);
-                    return newProduct.getId() == oldProduct.getId()
-                            && TextUtils.equals(newProduct.getDescription(), oldProduct.getDescription())
-                            && TextUtils.equals(newProduct.getName(), oldProduct.getName())
-                            && newProduct.getPrice() == oldProduct.getPrice();
-                }
-            });
-            mProductList = productList;
-            /**
-             * 1）dispatchUpdatesTo()方法它会自动计算新老数据集的差异，并根据差异情况，自动调用以下四个方法
-             * - adapter.notifyItemRangeInserted(position, count);
-             * - adapter.notifyItemRangeRemoved(position, count);
-             * - adapter.notifyItemMoved(fromPosition, toPosition);
-             * - adapter.notifyItemRangeChanged(position, count, payload);
-             * */
-            result.dispatchUpdatesTo(this);
+        setProductList(productList, null);
+    }
+
+    /**
+     * commitCallback：差异应用到列表之后在主线程回调；被更新的列表取代时不会回调
+     */
+    public void setProductList(final List<? extends Product> productList, @Nullable Runnable commitCallback) {
+        //和最近一次提交的列表完全一样（id 和内容都相同），不需要再计算差异
+        if (isSameList(mSubmittedList, productList)) {
+            if (commitCallback != null) {
+                commitCallback.run();
+            }
+            return;
         }
+        mSubmittedList = productList;
+        mDiffer.submitList(Collections.unmodifiableList(productList), commitCallback);
+    }
+
+    private static boolean isSameList(@Nullable List<? extends Product> oldList,
+                                      @Nullable List<? extends Product> newList) {
+        if (oldList == newList) {
+            return true;
+        }
+        if (oldList == null || newList == null || oldList.size() != newList.size()) {
+            return false;
+        }
+        for (int i = 0; i < oldList.size(); i++) {
+            if (!DIFF_CALLBACK.areContentsTheSame(oldList.get(i), newList.get(i))) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @NonNull
     @NotNull
     @Override
     public ProductAdapter.ProductViewHolder onCreateViewHolder(@NonNull @NotNull ViewGroup parent, int viewType) {
-        ProductItemBinding binding = DataBindingUtil
-                .inflate(LayoutInflater.from(parent.getContext()), R.layout.product_item,
-                        parent, false);
-        //设置数据
-        binding.setCallback(mProductClickCallback);
-        return new ProductViewHolder(binding);
+        long start = AdapterMetrics.getInstance().begin();
+        ProductViewHolder holder = ProductViewHolder.create(parent);
+        AdapterMetrics.getInstance().endInflate(METRICS_NAME, start);
+        return holder;
     }
 
     @Override
     public void onBindViewHolder(@NonNull @NotNull ProductAdapter.ProductViewHolder holder, int position) {
-        //设置数据
-        holder.binding.setProduct(mProductList.get(position));
+        long start = AdapterMetrics.getInstance().begin();
+        //设置数据；ViewHolder 可能来自共享池，回调和评论数都要重新设置
+        holder.binding.setCallback(mProductClickCallback);
+        holder.binding.setProduct(mDiffer.getCurrentList().get(position));
+        //搜索结果不带评论数，清掉分页列表留下的值
+        holder.binding.setCommentCount(null);
         //立即刷新UI
         holder.binding.executePendingBindings();
+        AdapterMetrics.getInstance().endBind(METRICS_NAME, start);
+    }
+
+    @Override
+    public void onViewRecycled(@NonNull ProductViewHolder holder) {
+        //进入共享池之后不再持有当前界面的回调
+        holder.binding.setCallback(null);
+    }
+
+    /**
+     * view type 使用布局 id，和 ProductPagingAdapter 共用 ViewHolder（见 SharedViewPool）
+     */
+    @Override
+    public int getItemViewType(int position) {
+        return R.layout.product_item;
     }
 
     @Override
     public int getItemCount() {
-        return mProductList == null ? 0 : mProductList.size();
+        return mDiffer.getCurrentList().size();
     }
 
     @Override
     public long getItemId(int position) {
-        return mProductList.get(position).getId();
+        return mDiffer.getCurrentList().get(position).getId();
+    }
+
+    /**
+     * 只执行最新提交的差异计算任务：
+     * 还在排队、没开始执行的旧任务直接丢掉（它的结果反正会被 AsyncListDiffer 丢弃），
+     * 列表连续变化时后台线程不会堆积过期的 O(N+D²) 计算
+     */
+    private static class LatestOnlyExecutor implements Executor {
+
+        private final Executor mDelegate;
+
+        private final AtomicReference<Runnable> mPending = new AtomicReference<>();
+
+        LatestOnlyExecutor(Executor delegate) {
+            mDelegate = delegate;
+        }
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            if (mPending.getAndSet(command) == null) {
+                mDelegate.execute(() -> {
+                    Runnable latest = mPending.getAndSet(null);
+                    if (latest != null) {
+                        latest.run();
+                    }
+                });
+            }
+        }
     }
 
     static class ProductViewHolder extends RecyclerView.ViewHolder {
@@ -119,5 +191,15 @@ public class ProductAdapter extends RecyclerView.Adapter<ProductAdapter.ProductV
             super(binding.getRoot());
             this.binding = binding;
         }
+
+        /**
+         * 点击回调在 onBindViewHolder 里设置，创建时不绑定任何界面，可以放进共享池预先创建
+         */
+        static ProductViewHolder create(ViewGroup parent) {
+            ProductItemBinding binding = DataBindingUtil
+                    .inflate(LayoutInflater.from(parent.getContext()), R.layout.product_item,
+                            parent, false);
+            return new ProductViewHolder(binding);
+        }
     }
 }
@@ -5,6 +5,8 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
+import com.davi.architectureguide.BasicApp;
+import com.davi.architectureguide.MainActivity;
 import com.davi.architectureguide.viewmodel.ProductViewModel;
 import com.davi.architectureguide.R;
 import com.davi.architectureguide.databinding.ProductFragmentBinding;
@@ -16,6 +18,8 @@ import androidx.annotation.Nullable;
 import androidx.databinding.DataBindingUtil;
 import androidx.fragment.app.Fragment;
 import androidx.lifecycle.ViewModelProvider;
+import androidx.paging.LoadState;
+import kotlin.Unit;
 
 /***
  *
@@ -46,8 +50,20 @@ public class ProductFragment extends Fragment {
                              @Nullable @org.jetbrains.annotations.Nullable ViewGroup container,
                              @Nullable @org.jetbrains.annotations.Nullable Bundle savedInstanceState) {
         mBinding = DataBindingUtil.inflate(inflater, R.layout.product_fragment, container, false);
-        mCommentAdapter = new CommentAdapter(mCommentClickCallback);
+        mCommentAdapter = new CommentAdapter(mCommentClickCallback,
+                ((BasicApp) requireActivity().getApplication()).getAppExecutors().diffIO());
+        mCommentAdapter.addLoadStateListener(loadStates -> {
+            if (mBinding != null) {
+                //已经显示了预取的第一页时，Pager 刷新期间不切回加载中
+                mBinding.setIsLoading(loadStates.getRefresh() instanceof LoadState.Loading
+                        && mCommentAdapter.getItemCount() == 0);
+            }
+            return Unit.INSTANCE;
+        });
+        ((MainActivity) requireActivity()).getSharedViewPool().attach(mBinding.commentList);
         mBinding.commentList.setAdapter(mCommentAdapter);
+        //第一页评论到达之前显示加载中
+        mBinding.setIsLoading(true);
         return mBinding.getRoot();
     }
 
@@ -69,17 +85,11 @@ public class ProductFragment extends Fragment {
         subscribeToModel(model);
     }
 
-    //观察 LiveData 对象，LiveData<List<CommentEntity>>
+    //观察 LiveData 对象，LiveData<PagingData<CommentEntity>>
     private void subscribeToModel(final ProductViewModel model) {
-        // Observe comments
-        model.getComments().observe(getViewLifecycleOwner(), commentEntities -> {
-            if (commentEntities != null) {
-                mBinding.setIsLoading(false);
-                mCommentAdapter.submitList(commentEntities);
-            } else {
-                mBinding.setIsLoading(true);
-            }
-        });
+        // Observe comments, page by page
+        model.getPagedComments().observe(getViewLifecycleOwner(), pagingData ->
+                mCommentAdapter.submitData(getViewLifecycleOwner().getLifecycle(), pagingData));
     }
 
     @Override
@@ -2,25 +2,30 @@ package com.davi.architectureguide.ui;
 
 import android.os.Bundle;
 import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
+import com.davi.architectureguide.AppExecutors;
+import com.davi.architectureguide.BasicApp;
+import com.davi.architectureguide.DataRepository;
+import com.davi.architectureguide.EmissionMetrics;
 import com.davi.architectureguide.MainActivity;
 import com.davi.architectureguide.R;
+import com.davi.architectureguide.StartupTracer;
 import com.davi.architectureguide.databinding.ListFragmentBinding;
-import com.davi.architectureguide.db.entity.ProductEntity;
 import com.davi.architectureguide.viewmodel.ProductListViewModel;
 
-import java.util.List;
-
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.databinding.DataBindingUtil;
 import androidx.fragment.app.Fragment;
 import androidx.lifecycle.Lifecycle;
-import androidx.lifecycle.LiveData;
 import androidx.lifecycle.ViewModelProvider;
+import androidx.paging.LoadState;
+import androidx.recyclerview.widget.RecyclerView;
+import kotlin.Unit;
 
 public class ProductListFragment extends Fragment {
 
@@ -28,8 +33,12 @@ public class ProductListFragment extends Fragment {
 
     private ListFragmentBinding mBinding;
 
+    //搜索结果使用
     private ProductAdapter mProductAdapter;
 
+    //没有搜索关键字时，分页显示整个商品目录
+    private ProductPagingAdapter mProductPagingAdapter;
+
     private final ProductClickCallback mProductClickCallback = product -> {
         if (getLifecycle().getCurrentState().isAtLeast(Lifecycle.State.STARTED)) {
             /**
@@ -50,8 +59,25 @@ public class ProductListFragment extends Fragment {
                              @Nullable Bundle savedInstanceState) {
         mBinding = DataBindingUtil.inflate(inflater, R.layout.list_fragment, container, false);
 
-        mProductAdapter = new ProductAdapter(mProductClickCallback);
-        mBinding.productsList.setAdapter(mProductAdapter);
+        //差异计算放到 AppExecutors 的后台线程，不占用主线程的帧时间
+        AppExecutors executors = ((BasicApp) requireActivity().getApplication()).getAppExecutors();
+        mProductAdapter = new ProductAdapter(mProductClickCallback, executors.diffIO());
+        mProductPagingAdapter = new ProductPagingAdapter(mProductClickCallback, executors.diffIO());
+        mProductPagingAdapter.addLoadStateListener(loadStates -> {
+            if (mBinding != null && mBinding.productsList.getAdapter() == mProductPagingAdapter) {
+                mBinding.setIsLoading(loadStates.getRefresh() instanceof LoadState.Loading);
+            }
+            if (loadStates.getRefresh() instanceof LoadState.NotLoading
+                    && mProductPagingAdapter != null && mProductPagingAdapter.getItemCount() > 0) {
+                StartupTracer.getInstance().mark("first_list");
+                EmissionMetrics.getInstance().onRendered(DataRepository.STREAM_PAGED_PRODUCTS);
+            }
+            return Unit.INSTANCE;
+        });
+        ((MainActivity) requireActivity()).getSharedViewPool().attach(mBinding.productsList);
+        mBinding.productsList.setAdapter(mProductPagingAdapter);
+        //第一页数据到达之前显示加载中
+        mBinding.setIsLoading(true);
 
         return mBinding.getRoot();
     }
@@ -68,18 +94,45 @@ public class ProductListFragment extends Fragment {
             viewModel.setQuery(query);
         });
 
+        //边输入边搜索，ViewModel 负责防抖和去重
+        mBinding.productsSearchBox.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                viewModel.onQueryTextChanged(s.toString());
+            }
+        });
+
+        //按下条目、滚动停止时预取可见商品的详情
+        ProductPrefetcher.attach(mBinding.productsList, viewModel::prefetchProduct);
+
         //监听数据变化
-        subscribeUi(viewModel.getProducts());
+        subscribeUi(viewModel);
     }
 
-    private void subscribeUi(LiveData<List<ProductEntity>> liveData) {
-        // Update the list when the data changes
-        liveData.observe(getViewLifecycleOwner(), myProducts -> {
+    private void subscribeUi(ProductListViewModel viewModel) {
+        // Update the paged catalog when the data changes
+        viewModel.getPagedProducts().observe(getViewLifecycleOwner(), pagingData ->
+                mProductPagingAdapter.submitData(getViewLifecycleOwner().getLifecycle(), pagingData));
+
+        // Switch between the paged catalog and the search results
+        viewModel.getSearchResults().observe(getViewLifecycleOwner(), myProducts -> {
             if (myProducts != null) {
+                swapAdapter(mProductAdapter);
                 mBinding.setIsLoading(false);
-                mProductAdapter.setProductList(myProducts);
+                mProductAdapter.setProductList(myProducts,
+                        () -> EmissionMetrics.getInstance().onRendered(DataRepository.STREAM_SEARCH));
             } else {
-                mBinding.setIsLoading(true);
+                swapAdapter(mProductPagingAdapter);
+                //还没有收到第一页时继续显示加载中，之后交给 LoadStateListener 更新
+                mBinding.setIsLoading(mProductPagingAdapter.getItemCount() == 0);
             }
             // espresso does not know how to wait for data binding's loop so we execute changes
             // sync.
@@ -87,10 +140,18 @@ public class ProductListFragment extends Fragment {
         });
     }
 
+    private void swapAdapter(RecyclerView.Adapter<?> adapter) {
+        if (mBinding.productsList.getAdapter() != adapter) {
+            //两个适配器的 view type 相同，swapAdapter 把现有条目回收进池给新适配器复用，不会清空共享池
+            mBinding.productsList.swapAdapter(adapter, true);
+        }
+    }
+
     @Override
     public void onDestroyView() {
         mBinding = null;
         mProductAdapter = null;
+        mProductPagingAdapter = null;
         super.onDestroyView();
     }
 
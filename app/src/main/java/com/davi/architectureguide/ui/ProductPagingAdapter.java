@@ -0,0 +1,95 @@
+package com.davi.architectureguide.ui;
+
+import android.text.TextUtils;
+import android.view.ViewGroup;
+
+import com.davi.architectureguide.R;
+import com.davi.architectureguide.db.entity.ProductSummary;
+import com.davi.architectureguide.db.entity.ProductWithCommentStats;
+
+import java.util.concurrent.Executor;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.paging.PagingDataAdapter;
+import androidx.recyclerview.widget.DiffUtil;
+import kotlinx.coroutines.Dispatchers;
+import kotlinx.coroutines.ExecutorsKt;
+
+/***
+ * 分页版本的商品列表适配器
+ * 1）PagingDataAdapter 在后台线程比较新旧两页数据的差异，只刷新变化的条目
+ * 2）数据由 Pager 按页加载，适配器里只持有当前保留在内存中的页
+ * 3）每一行带有评论数（product_comment_stats），不需要加载评论
+ * 4）条目是精简投影 ProductSummary，完整的商品在详情页才加载
+ * 5）差异计算在传入的 diffExecutor 上执行（PagingDataAdapter 的 workerDispatcher 只用于差异计算），
+ * 耗时计入 AdapterMetrics
+ * */
+public class ProductPagingAdapter
+        extends PagingDataAdapter<ProductWithCommentStats, ProductAdapter.ProductViewHolder> {
+
+    private static final String METRICS_NAME = "ProductPagingAdapter";
+
+    private static final DiffUtil.ItemCallback<ProductWithCommentStats> DIFF_CALLBACK =
+            new DiffUtil.ItemCallback<ProductWithCommentStats>() {
+                @Override
+                public boolean areItemsTheSame(@NonNull ProductWithCommentStats old,
+                        @NonNull ProductWithCommentStats item) {
+                    return old.product.getId() == item.product.getId();
+                }
+
+                @Override
+                public boolean areContentsTheSame(@NonNull ProductWithCommentStats old,
+                        @NonNull ProductWithCommentStats item) {
+                    ProductSummary product = item.product;
+                    return old.product.getId() == product.getId()
+                            && TextUtils.equals(old.product.getDescription(), product.getDescription())
+                            && TextUtils.equals(old.product.getName(), product.getName())
+                            && old.product.getPrice() == product.getPrice()
+                            && old.commentCount == item.commentCount;
+                }
+            };
+
+    @Nullable
+    private final ProductClickCallback mProductClickCallback;
+
+    public ProductPagingAdapter(@Nullable ProductClickCallback clickCallback, @NonNull Executor diffExecutor) {
+        super(DIFF_CALLBACK, Dispatchers.getMain(),
+                ExecutorsKt.from(AdapterMetrics.getInstance().timed(METRICS_NAME, diffExecutor)));
+        mProductClickCallback = clickCallback;
+    }
+
+    @NonNull
+    @Override
+    public ProductAdapter.ProductViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        long start = AdapterMetrics.getInstance().begin();
+        ProductAdapter.ProductViewHolder holder = ProductAdapter.ProductViewHolder.create(parent);
+        AdapterMetrics.getInstance().endInflate(METRICS_NAME, start);
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ProductAdapter.ProductViewHolder holder, int position) {
+        long start = AdapterMetrics.getInstance().begin();
+        //关闭了占位符，这里正常不会为 null
+        ProductWithCommentStats item = getItem(position);
+        if (item != null) {
+            //ViewHolder 可能来自共享池，回调在这里设置
+            holder.binding.setCallback(mProductClickCallback);
+            holder.binding.setProduct(item.product);
+            holder.binding.setCommentCount(item.commentCount);
+            holder.binding.executePendingBindings();
+        }
+        AdapterMetrics.getInstance().endBind(METRICS_NAME, start);
+    }
+
+    @Override
+    public void onViewRecycled(@NonNull ProductAdapter.ProductViewHolder holder) {
+        holder.binding.setCallback(null);
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        return R.layout.product_item;
+    }
+}
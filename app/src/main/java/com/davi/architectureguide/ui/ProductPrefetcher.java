@@ -0,0 +1,76 @@
+package com.davi.architectureguide.ui;
+
+import android.view.MotionEvent;
+import android.view.View;
+
+import com.davi.architectureguide.model.Product;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+/***
+ * 预测用户接下来要打开的商品
+ * 1）手指按下（ACTION_DOWN）时，按下的那个条目：从按下到抬起、触发点击通常有 100ms 左右，足够查完商品和第一页评论
+ * 2）滚动停止时，可见区域里的前 MAX_VISIBLE_PREFETCH 个条目
+ * 3）只负责挑选商品，去重、并发限制、缓存由 Listener 的实现（DataRepository#prefetchProduct）处理
+ * */
+public class ProductPrefetcher extends RecyclerView.OnScrollListener implements RecyclerView.OnItemTouchListener {
+
+    public interface Listener {
+        void onPrefetch(int productId);
+    }
+
+    private static final int MAX_VISIBLE_PREFETCH = 6;
+
+    private final Listener mListener;
+
+    private ProductPrefetcher(Listener listener) {
+        mListener = listener;
+    }
+
+    public static void attach(RecyclerView list, Listener listener) {
+        ProductPrefetcher prefetcher = new ProductPrefetcher(listener);
+        list.addOnItemTouchListener(prefetcher);
+        list.addOnScrollListener(prefetcher);
+    }
+
+    @Override
+    public boolean onInterceptTouchEvent(@NonNull RecyclerView list, @NonNull MotionEvent event) {
+        if (event.getActionMasked() == MotionEvent.ACTION_DOWN) {
+            View child = list.findChildViewUnder(event.getX(), event.getY());
+            if (child != null) {
+                prefetch(list.getChildViewHolder(child));
+            }
+        }
+        //只观察，不拦截
+        return false;
+    }
+
+    @Override
+    public void onTouchEvent(@NonNull RecyclerView list, @NonNull MotionEvent event) {
+    }
+
+    @Override
+    public void onRequestDisallowInterceptTouchEvent(boolean disallowIntercept) {
+    }
+
+    @Override
+    public void onScrollStateChanged(@NonNull RecyclerView list, int newState) {
+        if (newState != RecyclerView.SCROLL_STATE_IDLE) {
+            return;
+        }
+        int count = Math.min(list.getChildCount(), MAX_VISIBLE_PREFETCH);
+        for (int i = 0; i < count; i++) {
+            prefetch(list.getChildViewHolder(list.getChildAt(i)));
+        }
+    }
+
+    private void prefetch(RecyclerView.ViewHolder holder) {
+        if (holder instanceof ProductAdapter.ProductViewHolder) {
+            Product product = ((ProductAdapter.ProductViewHolder) holder).binding.getProduct();
+            if (product != null) {
+                mListener.onPrefetch(product.getId());
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.davi.architectureguide.ui;
+
+import android.content.Context;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+
+import com.davi.architectureguide.R;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+/***
+ * 列表界面共享的 ViewHolder 池，属于 MainActivity（条目 View 用 Activity 的 Context 创建，不能比它活得更久）
+ * 1）view type 直接使用布局 id（R.layout.product_item、R.layout.comment_item），
+ * 不同适配器里相同布局的 ViewHolder 可以互相复用，不同布局不会混用
+ * 2）{@link #prewarm}：启动后在主线程空闲时（IdleHandler）预先创建 ViewHolder 放进池里，
+ * 每次空闲只创建一个，不会占用一整帧；第一次显示列表、跳转到详情页时不需要再 inflate
+ * 3）{@link #attach}：列表使用共享池，界面销毁时把子 View 回收进池（setRecycleChildrenOnDetach），
+ * 嵌套在其他滚动列表里时按 initialPrefetchItemCount 预取
+ * 4）点击回调在 onBindViewHolder 里设置、在 onViewRecycled 里清除，池里的 ViewHolder 不持有旧界面
+ * */
+public class SharedViewPool {
+
+    public static final int DEFAULT_PREWARM_PRODUCT_ITEMS = 12;
+
+    public static final int DEFAULT_PREWARM_COMMENT_ITEMS = 8;
+
+    //RecycledViewPool 默认每种类型只保留 5 个，预创建的会被丢掉
+    private static final int MAX_RECYCLED_VIEWS = 20;
+
+    private static final int DEFAULT_INITIAL_PREFETCH_ITEM_COUNT = 4;
+
+    private final RecyclerView.RecycledViewPool mPool = new RecyclerView.RecycledViewPool();
+
+    private int mInitialPrefetchItemCount = DEFAULT_INITIAL_PREFETCH_ITEM_COUNT;
+
+    public SharedViewPool() {
+        mPool.setMaxRecycledViews(R.layout.product_item, MAX_RECYCLED_VIEWS);
+        mPool.setMaxRecycledViews(R.layout.comment_item, MAX_RECYCLED_VIEWS);
+    }
+
+    public RecyclerView.RecycledViewPool getPool() {
+        return mPool;
+    }
+
+    /**
+     * 嵌套列表第一次出现时预取多少个条目，在 {@link #attach} 之前设置
+     */
+    public void setInitialPrefetchItemCount(int count) {
+        mInitialPrefetchItemCount = Math.max(0, count);
+    }
+
+    /**
+     * 在设置适配器之前调用
+     */
+    public void attach(RecyclerView list) {
+        list.setRecycledViewPool(mPool);
+        RecyclerView.LayoutManager layoutManager = list.getLayoutManager();
+        if (layoutManager instanceof LinearLayoutManager) {
+            LinearLayoutManager linearLayoutManager = (LinearLayoutManager) layoutManager;
+            linearLayoutManager.setRecycleChildrenOnDetach(true);
+            linearLayoutManager.setInitialPrefetchItemCount(mInitialPrefetchItemCount);
+        }
+    }
+
+    /**
+     * 在主线程调用，主线程空闲时逐个创建，池里已经有的数量会算在内
+     */
+    public void prewarm(Context context, int productItems, int commentItems) {
+        Looper.myQueue().addIdleHandler(new PrewarmTask(context, productItems, commentItems));
+    }
+
+    private class PrewarmTask implements MessageQueue.IdleHandler {
+
+        //只用来提供 LayoutParams，不会显示
+        private final ViewGroup mParent;
+
+        private final PrewarmAdapter mAdapter = new PrewarmAdapter();
+
+        private final int mProductItems;
+
+        private final int mCommentItems;
+
+        PrewarmTask(Context context, int productItems, int commentItems) {
+            mParent = new FrameLayout(context);
+            mProductItems = Math.min(productItems, MAX_RECYCLED_VIEWS);
+            mCommentItems = Math.min(commentItems, MAX_RECYCLED_VIEWS);
+        }
+
+        @Override
+        public boolean queueIdle() {
+            if (mPool.getRecycledViewCount(R.layout.product_item) < mProductItems) {
+                mPool.putRecycledView(mAdapter.createViewHolder(mParent, R.layout.product_item));
+            } else if (mPool.getRecycledViewCount(R.layout.comment_item) < mCommentItems) {
+                mPool.putRecycledView(mAdapter.createViewHolder(mParent, R.layout.comment_item));
+            }
+            //返回 false 时移除这个 IdleHandler
+            return mPool.getRecycledViewCount(R.layout.product_item) < mProductItems
+                    || mPool.getRecycledViewCount(R.layout.comment_item) < mCommentItems;
+        }
+    }
+
+    /**
+     * createViewHolder 会设置 ViewHolder 的 view type，池按它分类，所以通过一个适配器来创建
+     */
+    private static class PrewarmAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
+
+        @NonNull
+        @Override
+        public RecyclerView.ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+            return viewType == R.layout.product_item
+                    ? ProductAdapter.ProductViewHolder.create(parent)
+                    : CommentAdapter.CommentViewHolder.create(parent);
+        }
+
+        @Override
+        public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
+        }
+
+        @Override
+        public int getItemCount() {
+            return 0;
+        }
+    }
+}
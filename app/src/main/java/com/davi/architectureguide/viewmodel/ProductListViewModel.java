@@ -1,30 +1,59 @@
 package com.davi.architectureguide.viewmodel;
 
 import android.app.Application;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
 
 import com.davi.architectureguide.BasicApp;
 import com.davi.architectureguide.DataRepository;
+import com.davi.architectureguide.db.ProductFilter;
 import com.davi.architectureguide.db.entity.ProductEntity;
+import com.davi.architectureguide.db.entity.ProductWithCommentStats;
 
 import java.util.List;
+import java.util.Locale;
 
 import androidx.annotation.NonNull;
 import androidx.arch.core.util.Function;
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MediatorLiveData;
+import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.SavedStateHandle;
 import androidx.lifecycle.Transformations;
+import androidx.lifecycle.ViewModelKt;
+import androidx.paging.PagingData;
+import androidx.paging.PagingLiveData;
 
 public class ProductListViewModel extends AndroidViewModel {
 
     private static final String QUERY_KEY = "QUERY";
 
+    //价格过滤和排序，和 QUERY_KEY 一样保存在 SavedStateHandle 里，进程被杀后可以恢复；
+    //区间的两端放在同一个 Integer[]{min, max} 里，修改区间只发出一次新的 ProductFilter
+    private static final String PRICE_RANGE_KEY = "PRICE_RANGE";
+
+    private static final String SORT_KEY = "SORT";
+
+    //输入停止多久之后才真正发起搜索
+    public static final long DEFAULT_SEARCH_DEBOUNCE_MILLIS = 300;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private long mSearchDebounceMillis = DEFAULT_SEARCH_DEBOUNCE_MILLIS;
+
+    private CharSequence mPendingQuery;
+
+    private final Runnable mApplyPendingQuery = () -> setQuery(mPendingQuery);
+
     private final SavedStateHandle mSavedStateHandler;
 
     private final DataRepository mRepository;
 
-    private final LiveData<List<ProductEntity>> mProducts;
+    private final LiveData<List<ProductEntity>> mSearchResults;
+
+    private final LiveData<PagingData<ProductWithCommentStats>> mPagedProducts;
 
     public ProductListViewModel(@NonNull Application application,
                                 @NonNull SavedStateHandle savedStateHandle) {
@@ -36,33 +65,122 @@ public class ProductListViewModel extends AndroidViewModel {
         /**
          *（1）先查存储的 数据
          *（2）如果存在，那么searchProducts
-         *（3）如果不存在，那么getProducts
+         *（3）如果不存在，那么返回 null，界面显示分页列表
          * */
-        mProducts = Transformations.switchMap(
-                savedStateHandle.getLiveData("QUERY", null),
+        mSearchResults = Transformations.switchMap(
+                savedStateHandle.getLiveData(QUERY_KEY, null),
                 (Function<CharSequence, LiveData<List<ProductEntity>>>) query -> {
                     if (TextUtils.isEmpty(query)) {
-                        return mRepository.getProducts();
+                        return new MutableLiveData<>(null);
                     }
-                    return mRepository.searchProducts("*" + query + "*");
+                    return mRepository.searchProducts(query.toString());
                 });
+
+        /**
+         *（1）价格区间、排序任一变化时组合成新的 ProductFilter，相同的条件不会重新创建 Pager
+         *（2）过滤和排序都交给数据库的索引，不在界面上对整个列表排序
+         *（3）cachedIn：把分页数据缓存在 ViewModel 的作用域里，配置变更（如旋转）后不需要重新加载
+         * */
+        MediatorLiveData<ProductFilter> filter = new MediatorLiveData<>();
+        LiveData<Integer[]> priceRange = savedStateHandle.getLiveData(PRICE_RANGE_KEY, null);
+        LiveData<String> sort = savedStateHandle.getLiveData(SORT_KEY, null);
+        filter.addSource(priceRange, value -> filter.setValue(currentFilter()));
+        filter.addSource(sort, value -> filter.setValue(currentFilter()));
+        mPagedProducts = PagingLiveData.cachedIn(
+                Transformations.switchMap(Transformations.distinctUntilChanged(filter),
+                        mRepository::getPagedProducts),
+                ViewModelKt.getViewModelScope(this));
     }
 
     /***
-     * 持久化
+     * 持久化，立即搜索（点击搜索按钮）
+     * 1）和当前的搜索词相同（忽略大小写和多余的空格）时不会重新查询
+     * 2）新的搜索词会让 switchMap 移除旧查询的 LiveData，旧查询还没返回的结果直接被丢弃，也不会再随数据变化重新查询
      * */
     public void setQuery(CharSequence query) {
+        mHandler.removeCallbacks(mApplyPendingQuery);
+        String normalized = normalize(query);
+        if (TextUtils.equals(normalized, mSavedStateHandler.get(QUERY_KEY))) {
+            return;
+        }
         // Save the user's query into the SavedStateHandle.
         // This ensures that we retain the value across process death
         // and is used as the input into the Transformations.switchMap above
-        mSavedStateHandler.set(QUERY_KEY, query);
+        mSavedStateHandler.set(QUERY_KEY, normalized);
+    }
+
+    /***
+     * 边输入边搜索：每次输入都重新计时，停止输入 mSearchDebounceMillis 之后才调用 {@link #setQuery}，
+     * 连续输入时不会每个字符都发起一次全文搜索
+     * */
+    public void onQueryTextChanged(CharSequence query) {
+        mPendingQuery = query;
+        mHandler.removeCallbacks(mApplyPendingQuery);
+        mHandler.postDelayed(mApplyPendingQuery, mSearchDebounceMillis);
+    }
+
+    /**
+     * 价格区间（含两端），null 表示这一端不限；设置区间但没有选择价格排序时按价格升序
+     */
+    public void setPriceRange(Integer minPrice, Integer maxPrice) {
+        mSavedStateHandler.set(PRICE_RANGE_KEY,
+                minPrice == null && maxPrice == null ? null : new Integer[]{minPrice, maxPrice});
+    }
+
+    public void setSort(ProductFilter.Sort sort) {
+        //保存名称而不是枚举本身，SavedStateHandle 里只放基本类型
+        mSavedStateHandler.set(SORT_KEY, sort == null ? null : sort.name());
+    }
+
+    public ProductFilter getFilter() {
+        return currentFilter();
+    }
+
+    private ProductFilter currentFilter() {
+        String sort = mSavedStateHandler.get(SORT_KEY);
+        Integer[] range = mSavedStateHandler.get(PRICE_RANGE_KEY);
+        return new ProductFilter(range == null ? null : range[0], range == null ? null : range[1],
+                sort == null ? null : ProductFilter.Sort.valueOf(sort));
+    }
+
+    /**
+     * 用户可能要打开这个商品（按下、停留在可见区域），提前加载详情，见 {@link DataRepository#prefetchProduct}
+     */
+    public void prefetchProduct(int productId) {
+        mRepository.prefetchProduct(productId);
+    }
+
+    public void setSearchDebounceMillis(long debounceMillis) {
+        mSearchDebounceMillis = Math.max(0, debounceMillis);
+    }
+
+    private static String normalize(CharSequence query) {
+        if (query == null) {
+            return null;
+        }
+        String normalized = query.toString().trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+        return normalized.isEmpty() ? null : normalized;
+    }
+
+    @Override
+    protected void onCleared() {
+        mHandler.removeCallbacks(mApplyPendingQuery);
+        super.onCleared();
+    }
+
+    /**
+     * Expose the LiveData search results so the UI can observe it.
+     * Emits null while there is no query, in which case the UI shows {@link #getPagedProducts()}.
+     */
+    public LiveData<List<ProductEntity>> getSearchResults() {
+        return mSearchResults;
     }
 
     /**
-     * Expose the LiveData Products query so the UI can observe it.
+     * Expose the paged product catalog so the UI can observe it.
      */
-    public LiveData<List<ProductEntity>> getProducts() {
-        return mProducts;
+    public LiveData<PagingData<ProductWithCommentStats>> getPagedProducts() {
+        return mPagedProducts;
     }
 
 }
@@ -7,13 +7,14 @@ import com.davi.architectureguide.DataRepository;
 import com.davi.architectureguide.db.entity.CommentEntity;
 import com.davi.architectureguide.db.entity.ProductEntity;
 
-import java.util.List;
-
 import androidx.annotation.NonNull;
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.ViewModel;
+import androidx.lifecycle.ViewModelKt;
 import androidx.lifecycle.ViewModelProvider;
+import androidx.paging.PagingData;
+import androidx.paging.PagingLiveData;
 
 
 /**
@@ -99,15 +100,21 @@ public class ProductViewModel extends AndroidViewModel {
      * */
     private final LiveData<ProductEntity> mObservableProduct;
 
-    private final LiveData<List<CommentEntity>> mObservableComments;
+    //评论按发表时间倒序分页加载，cachedIn 让配置变更后不用重新加载已有的页
+    private final LiveData<PagingData<CommentEntity>> mPagedComments;
 
     private final int mProductId;
 
+    /**
+     * 列表页预取过这个商品时（{@link DataRepository#prefetchProduct}），商品和第一页评论都先从内存发出，
+     * 第一帧不显示加载中
+     */
     public ProductViewModel(@NonNull Application application, DataRepository repository, final int productId) {
         super(application);
 
         mProductId = productId;
-        mObservableComments = repository.loadComments(mProductId);
+        mPagedComments = PagingLiveData.cachedIn(repository.getPagedComments(mProductId),
+                ViewModelKt.getViewModelScope(this));
         mObservableProduct = repository.loadProduct(mProductId);
     }
 
@@ -142,11 +149,11 @@ public class ProductViewModel extends AndroidViewModel {
     }
 
     /**
-     * Expose the LiveData Comments query so the UI can observe it.
+     * Expose the paged comments so the UI can observe it.
      * 暴露LiveData，UI层可以监听
      */
-    public LiveData<List<CommentEntity>> getComments() {
-        return mObservableComments;
+    public LiveData<PagingData<CommentEntity>> getPagedComments() {
+        return mPagedComments;
     }
 
 }
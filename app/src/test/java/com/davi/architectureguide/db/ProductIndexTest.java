@@ -0,0 +1,167 @@
+package com.davi.architectureguide.db;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/***
+ * ProductIndex 里不访问数据库的部分，在 JVM 上直接运行
+ * 1）IntIntMap：环形探测越过表尾时的 put/get/remove（backward shift），以及和 HashMap 对比的随机操作
+ * 2）排序键 pack/unpackSorted：负价格、Integer 的边界值、负 id、降序，以及不在快照里的 id 排在最后
+ * */
+public class ProductIndexTest {
+
+    @Test
+    public void intIntMapWrapsAroundTableEnd() {
+        ProductIndex.IntIntMap map = new ProductIndex.IntIntMap(8);
+        int capacity = map.capacity();
+        int mask = capacity - 1;
+        //理想位置都是最后一格：第一个放在表尾，后面的绕回表头
+        List<Integer> keys = keysWithSlot(mask, mask, 4);
+        for (int i = 0; i < keys.size(); i++) {
+            map.put(keys.get(i), i);
+        }
+        //没有扩容，探测确实绕过了表尾
+        assertEquals(capacity, map.capacity());
+
+        //删除表尾那个，后面绕回去的要往前挪，否则会查不到
+        map.remove(keys.get(0));
+        assertEquals(-1, map.get(keys.get(0)));
+        for (int i = 1; i < keys.size(); i++) {
+            assertEquals(i, map.get(keys.get(i)));
+        }
+
+        //删除中间的一个，再放回去
+        map.remove(keys.get(2));
+        assertEquals(-1, map.get(keys.get(2)));
+        assertEquals(1, map.get(keys.get(1)));
+        assertEquals(3, map.get(keys.get(3)));
+        map.put(keys.get(2), 20);
+        assertEquals(20, map.get(keys.get(2)));
+        assertEquals(3, map.size());
+    }
+
+    @Test
+    public void intIntMapRemoveKeepsEntriesWhoseIdealSlotIsAfterTheHole() {
+        ProductIndex.IntIntMap map = new ProductIndex.IntIntMap(8);
+        int mask = map.capacity() - 1;
+        //a、b 的理想位置是表尾，c 的理想位置是 0：c 被 b 挤到 1
+        int a = keysWithSlot(mask, mask, 1).get(0);
+        int b = keysWithSlot(mask, mask, 2).get(1);
+        int c = keysWithSlot(0, mask, 1).get(0);
+        map.put(a, 1);
+        map.put(b, 2);
+        map.put(c, 3);
+
+        map.remove(a);
+        assertEquals(-1, map.get(a));
+        assertEquals(2, map.get(b));
+        assertEquals(3, map.get(c));
+    }
+
+    @Test
+    public void intIntMapMatchesHashMap() {
+        Random random = new Random(19);
+        ProductIndex.IntIntMap map = new ProductIndex.IntIntMap(4);
+        Map<Integer, Integer> expected = new HashMap<>();
+        //key 的范围小，put、remove 会反复碰到同一批 key，中途还会扩容
+        for (int op = 0; op < 100_000; op++) {
+            int key = random.nextInt(2000) - 1000;
+            if (random.nextInt(3) == 0) {
+                map.remove(key);
+                expected.remove(key);
+            } else {
+                int value = random.nextInt(Integer.MAX_VALUE);
+                map.put(key, value);
+                expected.put(key, value);
+            }
+            if (op % 1000 == 0) {
+                assertSameContents(expected, map);
+            }
+        }
+        assertSameContents(expected, map);
+
+        map.clear();
+        assertEquals(0, map.size());
+        assertEquals(-1, map.get(0));
+    }
+
+    @Test
+    public void sortsByPriceAscendingThenId() {
+        int[] prices = {5, -3, Integer.MAX_VALUE, 5, Integer.MIN_VALUE, 0};
+        int[] ids = {7, 2, 9, -4, 3, Integer.MIN_VALUE};
+        assertArrayEquals(new int[]{3, 2, Integer.MIN_VALUE, -4, 7, 9}, sortByPrice(prices, ids, false));
+    }
+
+    @Test
+    public void sortsByPriceDescendingThenIdIncludingIntBounds() {
+        int[] prices = {5, -3, Integer.MAX_VALUE, 5, Integer.MIN_VALUE, 0};
+        int[] ids = {7, 2, 9, -4, 3, Integer.MIN_VALUE};
+        //价格相同的仍然按 id 升序
+        assertArrayEquals(new int[]{9, -4, 7, Integer.MIN_VALUE, 2, 3}, sortByPrice(prices, ids, true));
+    }
+
+    @Test
+    public void missingIdsSortAfterPresentOnes() {
+        //前 present 个是快照里的行，后面是不在快照里的 id
+        long[] keys = {
+                ProductIndex.priceKey(Integer.MIN_VALUE, 8, true),
+                ProductIndex.priceKey(10, 1, true),
+                ProductIndex.pack(0, 6),
+                ProductIndex.pack(0, -2)};
+        int[] ids = new int[keys.length];
+        ProductIndex.unpackSorted(keys, 2, ids);
+        //降序时价格为 Integer.MIN_VALUE 的行排在快照的最后，但仍然在不在快照里的 id 前面
+        assertArrayEquals(new int[]{1, 8, -2, 6}, ids);
+    }
+
+    @Test
+    public void packOrdersIdsAsSignedInts() {
+        int[] ids = {Integer.MAX_VALUE, 0, -1, Integer.MIN_VALUE, 1};
+        long[] keys = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            keys[i] = ProductIndex.pack(42, ids[i]);
+        }
+        int[] sorted = new int[ids.length];
+        ProductIndex.unpackSorted(keys, keys.length, sorted);
+        assertArrayEquals(new int[]{Integer.MIN_VALUE, -1, 0, 1, Integer.MAX_VALUE}, sorted);
+    }
+
+    private static int[] sortByPrice(int[] prices, int[] ids, boolean descending) {
+        long[] keys = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            keys[i] = ProductIndex.priceKey(prices[i], ids[i], descending);
+        }
+        int[] sorted = new int[ids.length];
+        ProductIndex.unpackSorted(keys, keys.length, sorted);
+        return sorted;
+    }
+
+    /**
+     * 从 0 开始找 count 个理想位置是 slot 的 key
+     */
+    private static List<Integer> keysWithSlot(int slot, int mask, int count) {
+        List<Integer> keys = new ArrayList<>();
+        for (int key = 0; keys.size() < count; key++) {
+            if ((ProductIndex.IntIntMap.hash(key) & mask) == slot) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    private static void assertSameContents(Map<Integer, Integer> expected, ProductIndex.IntIntMap map) {
+        assertEquals(expected.size(), map.size());
+        for (int key = -1000; key < 1000; key++) {
+            Integer value = expected.get(key);
+            assertEquals("key " + key, value == null ? -1 : value, map.get(key));
+        }
+    }
+}
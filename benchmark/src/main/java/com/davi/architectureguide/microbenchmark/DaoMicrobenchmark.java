@@ -0,0 +1,283 @@
+package com.davi.architectureguide.microbenchmark;
+
+import android.content.Context;
+
+import com.davi.architectureguide.AppExecutors;
+import com.davi.architectureguide.DataGenerator;
+import com.davi.architectureguide.MeteredExecutor;
+import com.davi.architectureguide.db.AppDatabase;
+import com.davi.architectureguide.db.BulkImporter;
+import com.davi.architectureguide.db.ProductSearchRanker;
+import com.davi.architectureguide.db.dao.CommentDao;
+import com.davi.architectureguide.db.dao.ProductDao;
+import com.davi.architectureguide.db.entity.ProductEntity;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.core.app.ApplicationProvider;
+
+/***
+ * DAO 热点方法的微基准测试，也是唯一的 DAO 基准测试（debug 里的 Robolectric 版本已经去掉）
+ * 1）每组参数（商品数 × 每个商品最多几条评论，Zipf 分布）用 DataGenerator 在文件数据库里建一个目录，
+ * 同一组参数的各个方法共用这个目录；Parameterized 按参数分组依次运行，切换参数时才删除旧目录、建新目录
+ * 2）预热、重复次数、分配统计都由 BenchmarkRule 负责，测试代码只写被测的调用
+ * 3）insertAllNew、insertAllUpdate 写入的行在暂停计时的时候删除或还原，之后的方法看到的还是原来的目录；
+ * 还原之后等后台的变更分发执行完，不和计时的写入抢锁
+ * */
+@RunWith(Parameterized.class)
+public class DaoMicrobenchmark {
+
+    private static final String DATABASE_NAME = "microbenchmark-catalog-db";
+
+    private static final long SEED = 7;
+
+    //和 DataRepository 返回给界面的搜索结果上限一致
+    private static final int SEARCH_LIMIT = 100;
+
+    //和 DataRepository 的评论分页大小一致
+    private static final int COMMENT_PAGE_SIZE = 30;
+
+    private static final int INSERT_BATCH = 100;
+
+    private static final int RANDOM_IDS = 1024;
+
+    private static final String[] SEARCH_QUERIES = new String[]{
+            "mon", "rubber chick", "qual", "isl", "three-headed monkey"};
+
+    @Parameterized.Parameters(name = "products={0},maxComments={1}")
+    public static List<Object[]> parameters() {
+        return Arrays.asList(new Object[][]{
+                {1000, 0}, {1000, 50},
+                {100000, 0}, {100000, 50},
+                {1000000, 0}, {1000000, 50}});
+    }
+
+    //当前参数的目录，跨方法共用
+    private static Catalog sCatalog;
+
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private final int mProducts;
+
+    private final int mMaxComments;
+
+    private AppDatabase mDatabase;
+
+    private int[] mIds;
+
+    private String[] mQueries;
+
+    public DaoMicrobenchmark(int products, int maxComments) {
+        mProducts = products;
+        mMaxComments = maxComments;
+    }
+
+    @Before
+    public void openCatalog() throws InterruptedException {
+        if (sCatalog == null || !sCatalog.matches(mProducts, mMaxComments)) {
+            closeCatalog();
+            sCatalog = Catalog.build(mProducts, mMaxComments);
+        }
+        mDatabase = sCatalog.mDatabase;
+
+        Random random = new Random(SEED);
+        mIds = new int[RANDOM_IDS];
+        for (int i = 0; i < mIds.length; i++) {
+            mIds[i] = random.nextInt(mProducts) + 1;
+        }
+        mQueries = new String[SEARCH_QUERIES.length];
+        for (int i = 0; i < mQueries.length; i++) {
+            mQueries[i] = ProductSearchRanker.toFtsQuery(SEARCH_QUERIES[i]);
+        }
+    }
+
+    @AfterClass
+    public static void closeCatalog() throws InterruptedException {
+        if (sCatalog != null) {
+            sCatalog.close();
+            sCatalog = null;
+        }
+    }
+
+    @Test
+    public void loadProductSync() {
+        ProductDao productDao = mDatabase.productDao();
+        BenchmarkState state = mBenchmarkRule.getState();
+        int i = 0;
+        while (state.keepRunning()) {
+            productDao.loadProductSync(mIds[i++ % mIds.length]);
+        }
+    }
+
+    @Test
+    public void loadLatestComments() {
+        CommentDao commentDao = mDatabase.commentDao();
+        BenchmarkState state = mBenchmarkRule.getState();
+        int i = 0;
+        while (state.keepRunning()) {
+            commentDao.loadLatestComments(mIds[i++ % mIds.length], COMMENT_PAGE_SIZE);
+        }
+    }
+
+    @Test
+    public void searchProductMatches() {
+        ProductDao productDao = mDatabase.productDao();
+        BenchmarkState state = mBenchmarkRule.getState();
+        int i = 0;
+        while (state.keepRunning()) {
+            ProductSearchRanker.search(productDao, mQueries[i++ % mQueries.length], SEARCH_LIMIT);
+        }
+    }
+
+    /**
+     * 边读边排序 + 只读取前 SEARCH_LIMIT 个商品，和 DataRepository 的搜索一致
+     */
+    @Test
+    public void searchRanked() {
+        ProductDao productDao = mDatabase.productDao();
+        BenchmarkState state = mBenchmarkRule.getState();
+        int i = 0;
+        while (state.keepRunning()) {
+            productDao.loadProductsByIds(ProductSearchRanker.search(productDao,
+                    mQueries[i++ % mQueries.length], SEARCH_LIMIT).ids);
+        }
+    }
+
+    /**
+     * 覆盖已有的行，每次迭代之后写回原来的内容
+     */
+    @Test
+    public void insertAllUpdate() throws InterruptedException {
+        ProductDao productDao = mDatabase.productDao();
+        BenchmarkState state = mBenchmarkRule.getState();
+        Iterator<ProductEntity> rows = DataGenerator.streamProducts(
+                new DataGenerator.Spec().seed(SEED + 1).products(Integer.MAX_VALUE));
+        int next = 0;
+        while (state.keepRunning()) {
+            //批次的生成、原来内容的读取不计入耗时
+            state.pauseTiming();
+            List<Integer> ids = new ArrayList<>(INSERT_BATCH);
+            for (int j = 0; j < INSERT_BATCH; j++) {
+                ids.add(mIds[next++ % mIds.length]);
+            }
+            List<ProductEntity> originals = productDao.loadProductsByIds(ids);
+            List<ProductEntity> batch = new ArrayList<>(INSERT_BATCH);
+            for (Integer id : ids) {
+                ProductEntity product = rows.next();
+                product.setId(id);
+                batch.add(product);
+            }
+            state.resumeTiming();
+            productDao.insertAll(batch);
+            state.pauseTiming();
+            productDao.insertAll(originals);
+            sCatalog.awaitIdle();
+            state.resumeTiming();
+        }
+    }
+
+    /**
+     * 追加新的行，每次迭代之后删除，目录的大小不随迭代次数增长
+     */
+    @Test
+    public void insertAllNew() throws InterruptedException {
+        ProductDao productDao = mDatabase.productDao();
+        BenchmarkState state = mBenchmarkRule.getState();
+        Iterator<ProductEntity> rows = DataGenerator.streamProducts(
+                new DataGenerator.Spec().seed(SEED + 1).products(Integer.MAX_VALUE));
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            List<ProductEntity> batch = new ArrayList<>(INSERT_BATCH);
+            for (int j = 1; j <= INSERT_BATCH; j++) {
+                ProductEntity product = rows.next();
+                product.setId(mProducts + j);
+                batch.add(product);
+            }
+            state.resumeTiming();
+            productDao.insertAll(batch);
+            state.pauseTiming();
+            //在 Room 的事务里执行，结束时和 DAO 的写入一样通知 InvalidationTracker
+            mDatabase.runInTransaction(() -> mDatabase.getOpenHelper().getWritableDatabase()
+                    .execSQL("DELETE FROM products WHERE id > " + mProducts));
+            sCatalog.awaitIdle();
+            state.resumeTiming();
+        }
+    }
+
+    /**
+     * 一组参数对应的目录和它的线程池
+     */
+    private static final class Catalog {
+
+        private final int mProducts;
+
+        private final int mMaxComments;
+
+        private final AppExecutors mExecutors;
+
+        private final AppDatabase mDatabase;
+
+        private Catalog(int products, int maxComments, AppExecutors executors, AppDatabase database) {
+            mProducts = products;
+            mMaxComments = maxComments;
+            mExecutors = executors;
+            mDatabase = database;
+        }
+
+        static Catalog build(int products, int maxComments) throws InterruptedException {
+            Context context = ApplicationProvider.getApplicationContext();
+            context.deleteDatabase(DATABASE_NAME);
+            AppExecutors executors = new AppExecutors();
+            AppDatabase database = AppDatabase.create(context, executors, DATABASE_NAME, false);
+            BulkImporter importer = new BulkImporter(database, BulkImporter.DEFAULT_CHUNK_SIZE, true, null);
+            DataGenerator.Spec spec = new DataGenerator.Spec()
+                    .seed(SEED)
+                    .products(products)
+                    .commentsPerProduct(maxComments, 1.0);
+            importer.importProducts(DataGenerator.streamProducts(spec));
+            importer.importComments(DataGenerator.streamComments(spec));
+            Catalog catalog = new Catalog(products, maxComments, executors, database);
+            catalog.awaitIdle();
+            return catalog;
+        }
+
+        boolean matches(int products, int maxComments) {
+            return mProducts == products && mMaxComments == maxComments;
+        }
+
+        /**
+         * 等后台线程上已经提交的任务（变更流的分发、日志清理等）执行完；分发时可能再提交一轮，所以等两轮
+         */
+        void awaitIdle() throws InterruptedException {
+            for (int round = 0; round < 2; round++) {
+                for (MeteredExecutor executor : mExecutors.diskMetrics()) {
+                    CountDownLatch barrier = new CountDownLatch(1);
+                    executor.execute(barrier::countDown);
+                    barrier.await();
+                }
+            }
+        }
+
+        void close() throws InterruptedException {
+            awaitIdle();
+            mDatabase.close();
+            mExecutors.shutdown();
+            ApplicationProvider.getApplicationContext().deleteDatabase(DATABASE_NAME);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.davi.architectureguide.microbenchmark;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.davi.architectureguide.AppExecutors;
+import com.davi.architectureguide.DataGenerator;
+import com.davi.architectureguide.DataRepository;
+import com.davi.architectureguide.MeteredExecutor;
+import com.davi.architectureguide.db.AppDatabase;
+import com.davi.architectureguide.db.BulkImporter;
+import com.davi.architectureguide.db.entity.ProductEntity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.Observer;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+/***
+ * 数据库启动阶段的基准测试
+ * 1）coldOpen：打开已有 N 行的数据库；firstPageQuery：打开之后的第一页分页查询
+ * 2）migrateFromV1：从版本 1 的 N 行数据库一路迁移到当前版本
+ * 3）seedProducts、seedComments：{@link BulkImporter} 写入 N 个商品（延迟建全文索引）和它们的评论，
+ * 每秒行数 = N / 耗时
+ * 4）firstEmission：从打开数据库到 DataRepository.getProducts() 第一次发出数据
+ * 5）每次迭代都重新打开数据库，准备和关闭数据库不计时（pauseTiming）；系统的文件缓存还在，测到的是进程级的"冷"
+ * */
+@RunWith(Parameterized.class)
+public class StartupMicrobenchmark {
+
+    private static final String DATABASE_NAME = "microbenchmark-startup-db";
+
+    private static final long SEED = 42;
+
+    //每个商品 0 ~ 10 条评论，Zipf 分布
+    private static final int MAX_COMMENTS_PER_PRODUCT = 10;
+
+    //和 DataRepository 的分页大小一致
+    private static final int FIRST_PAGE_SIZE = 50;
+
+    private static final long EMISSION_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    @Parameterized.Parameters(name = "rows={0}")
+    public static List<Object[]> parameters() {
+        return Arrays.asList(new Object[][]{{1000}, {10000}});
+    }
+
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private final int mRows;
+
+    private Context mContext;
+
+    private AppExecutors mExecutors;
+
+    public StartupMicrobenchmark(int rows) {
+        mRows = rows;
+    }
+
+    @Before
+    public void setUp() {
+        mContext = ApplicationProvider.getApplicationContext();
+        mExecutors = new AppExecutors();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mContext.deleteDatabase(DATABASE_NAME);
+        mExecutors.shutdown();
+    }
+
+    @Test
+    public void coldOpen() throws InterruptedException {
+        prepareDatabase();
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            AppDatabase database = open();
+            database.getOpenHelper().getWritableDatabase();
+            state.pauseTiming();
+            close(database);
+            state.resumeTiming();
+        }
+    }
+
+    @Test
+    public void firstPageQuery() throws InterruptedException {
+        prepareDatabase();
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            AppDatabase database = open();
+            database.getOpenHelper().getWritableDatabase();
+            state.resumeTiming();
+            database.productDao().loadProductsAfter(Integer.MIN_VALUE, FIRST_PAGE_SIZE);
+            state.pauseTiming();
+            close(database);
+            state.resumeTiming();
+        }
+    }
+
+    @Test
+    public void migrateFromV1() throws InterruptedException {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            mContext.deleteDatabase(DATABASE_NAME);
+            createVersion1Database();
+            state.resumeTiming();
+            AppDatabase database = open();
+            database.getOpenHelper().getWritableDatabase();
+            state.pauseTiming();
+            close(database);
+            state.resumeTiming();
+        }
+    }
+
+    @Test
+    public void seedProducts() throws InterruptedException {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            mContext.deleteDatabase(DATABASE_NAME);
+            AppDatabase database = open();
+            BulkImporter importer = newImporter(database);
+            state.resumeTiming();
+            importer.importProducts(DataGenerator.streamProducts(spec()));
+            state.pauseTiming();
+            close(database);
+            state.resumeTiming();
+        }
+    }
+
+    @Test
+    public void seedComments() throws InterruptedException {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            mContext.deleteDatabase(DATABASE_NAME);
+            AppDatabase database = open();
+            BulkImporter importer = newImporter(database);
+            importer.importProducts(DataGenerator.streamProducts(spec()));
+            state.resumeTiming();
+            importer.importComments(DataGenerator.streamComments(spec()));
+            state.pauseTiming();
+            close(database);
+            state.resumeTiming();
+        }
+    }
+
+    @Test
+    public void firstEmission() throws InterruptedException {
+        prepareDatabase();
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            //和应用启动时一样，数据库在第一次查询时才真正打开
+            AppDatabase database = open();
+            DataRepository repository = DataRepository.create(database, mExecutors);
+            LiveData<List<ProductEntity>> products = repository.getProducts();
+            Observer<List<ProductEntity>> observer = awaitFirstValue(products);
+            state.pauseTiming();
+            InstrumentationRegistry.getInstrumentation().runOnMainSync(
+                    () -> products.removeObserver(observer));
+            close(database);
+            state.resumeTiming();
+        }
+    }
+
+    private AppDatabase open() {
+        return AppDatabase.create(mContext, mExecutors, DATABASE_NAME, false);
+    }
+
+    /**
+     * 等后台线程上已经提交的任务（变更流的分发、日志清理等）执行完再关闭，不让它们访问已经关闭的数据库
+     */
+    private void close(AppDatabase database) throws InterruptedException {
+        for (int round = 0; round < 2; round++) {
+            for (MeteredExecutor executor : mExecutors.diskMetrics()) {
+                CountDownLatch barrier = new CountDownLatch(1);
+                executor.execute(barrier::countDown);
+                barrier.await();
+            }
+        }
+        database.close();
+    }
+
+    /**
+     * 在主线程上开始观察，等到第一个非 null 的值，返回观察者，调用方负责移除
+     */
+    private static <T> Observer<T> awaitFirstValue(final LiveData<T> liveData)
+            throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Observer<T> observer = value -> {
+            if (value != null) {
+                latch.countDown();
+            }
+        };
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> liveData.observeForever(observer));
+        if (!latch.await(EMISSION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            throw new IllegalStateException("No emission within " + EMISSION_TIMEOUT_MILLIS + "ms");
+        }
+        return observer;
+    }
+
+    private DataGenerator.Spec spec() {
+        return new DataGenerator.Spec()
+                .seed(SEED)
+                .products(mRows)
+                .commentsPerProduct(MAX_COMMENTS_PER_PRODUCT, 1.0);
+    }
+
+    private static BulkImporter newImporter(AppDatabase database) {
+        return new BulkImporter(database, BulkImporter.DEFAULT_CHUNK_SIZE, true, null);
+    }
+
+    /**
+     * 用当前版本的结构生成一个 N 行的数据库，然后关闭
+     */
+    private void prepareDatabase() throws InterruptedException {
+        AppDatabase database = open();
+        BulkImporter importer = newImporter(database);
+        importer.importProducts(DataGenerator.streamProducts(spec()));
+        importer.importComments(DataGenerator.streamComments(spec()));
+        close(database);
+    }
+
+    /**
+     * 版本 1 的结构（没有 productsFts、change_log），直接用 SQLiteDatabase 创建，不经过 Room
+     */
+    private void createVersion1Database() {
+        SQLiteDatabase db = mContext.openOrCreateDatabase(DATABASE_NAME, Context.MODE_PRIVATE, null);
+        try {
+            db.execSQL("CREATE TABLE IF NOT EXISTS `products` (`id` INTEGER NOT NULL, `name` TEXT, "
+                    + "`description` TEXT, `price` INTEGER NOT NULL, PRIMARY KEY(`id`))");
+            db.execSQL("CREATE TABLE IF NOT EXISTS `comments` (`id` INTEGER PRIMARY KEY "
+                    + "AUTOINCREMENT NOT NULL, `productId` INTEGER NOT NULL, `text` TEXT, "
+                    + "`postedAt` INTEGER, FOREIGN KEY(`productId`) REFERENCES `products`(`id`) "
+                    + "ON UPDATE NO ACTION ON DELETE CASCADE )");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_comments_productId` ON `comments` (`productId`)");
+            SQLiteStatement insert = db.compileStatement(
+                    "INSERT INTO products (id, name, description, price) VALUES (?, ?, ?, ?)");
+            db.beginTransaction();
+            try {
+                Iterator<ProductEntity> products = DataGenerator.streamProducts(spec());
+                while (products.hasNext()) {
+                    ProductEntity product = products.next();
+                    insert.bindLong(1, product.getId());
+                    insert.bindString(2, product.getName());
+                    insert.bindString(3, product.getDescription());
+                    insert.bindLong(4, product.getPrice());
+                    insert.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                insert.close();
+            }
+            db.setVersion(1);
+        } finally {
+            db.close();
+        }
+    }
+}